@@ -0,0 +1,2133 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * All state is owned by a single aggregation thread which processes queued commands and samples charts.
+ * It periodically publishes an immutable {@link State} through a volatile field, unchanged hists and charts
+ * are shared between consecutive states. Readers never lock and the aggregation thread never waits for them.
+ *
+ * It doesn't depend on the IDE, the plugin and the headless {@link SputnikCli} aggregate commands with the same code.
+ */
+public class Aggregator {
+  private final AtomicBoolean myStarted = new AtomicBoolean();
+  private final AtomicBoolean myStop = new AtomicBoolean();
+  private static final int QUEUE_CAPACITY = 16 * 1024;
+  private final ArrayBlockingQueue<Cmd> myCmds = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  // control commands which didn't fit into the full queue, processed after the current batch, see control()
+  private final ConcurrentLinkedQueue<Cmd> myControlCmds = new ConcurrentLinkedQueue<>();
+
+  // when commands arrive faster than they are processed parsers keep only 1 of this many sampled commands
+  // and scale counts back up, so hists stay unbiased instead of losing random commands when the queue is full
+  private static final int MAX_SAMPLING_RATIO = 1024;
+  private static final long SAMPLING_CHECK_MILLIS = 100;
+  // the queue must stay this short for this long before the sampling ratio is lowered
+  private static final long SAMPLING_CALM_MILLIS = 1000;
+  private volatile int mySamplingRatio = 1;
+  // commands which didn't fit into the queue or text which parsers couldn't keep up with since the last check
+  private final AtomicInteger myOverloads = new AtomicInteger();
+  private int myMaxQueueDepth = 0;
+  private long myLastSamplingCheck = 0;
+  private long myCalmSince = 0;
+
+  // hist name -> hist
+  private final Map<String, Hist> myHists = new HashMap<>();
+
+  // chart name -> (series -> count)
+  private final Map<String, Map<String, Counter>> myCharts = new HashMap<>();
+  private final Map<String, ChartUi> myChartUis = new HashMap<>();
+  // chart name -> (series -> count since the chart was created), used for run snapshots
+  private final Map<String, Map<String, Long>> myChartTotals = new HashMap<>();
+
+  private static final int RUNS_TO_KEEP = 5;
+  // run configuration name -> last snapshots, oldest first
+  private final Map<String, ArrayDeque<RunSnapshot>> myRuns = new HashMap<>();
+  private RunDiff myRunDiff = null;
+
+  // metrics not updated for this long are evicted first when memory budget is exceeded
+  private static final long STALE_MILLIS = 60_000;
+  // compaction keeps at least this many recently updated buckets in every hist
+  private static final int KEEP_BUCKETS = 100;
+  // tree hists show at most this many largest children of a node
+  private static final int TREE_ROWS = 100;
+  static final String EVICTED_BUCKET = "(evicted)";
+  // what was dropped last time memory budget was exceeded
+  private String myEvictionNote = null;
+
+  // H2 name -> grid of x/y pairs
+  private final Map<String, H2> myH2s = new HashMap<>();
+
+  // Hi keeps the last 2^HI_CAPACITY_BITS values
+  static final int HI_CAPACITY_BITS = 10;
+  private final RingBuf myRingBuf = new RingBuf(HI_CAPACITY_BITS);
+  private HiUi myLastHi = null;
+  // Hi buckets are log-scaled when the max is at least this many times the min
+  private static final long HI_LOG_RATIO = 100;
+  // sampling ratio and base unit of the last Hi value
+  private int myHiSamplingRatio = 1;
+  private String myHiUnit = "";
+
+  static final long SAMPLE_MILLIS = 1000;
+  // live charts keep this many samples
+  static final int CHART_SAMPLES = 600;
+  // watermark: counts with source timestamps are added to samples taken at most this long before the last one,
+  // older counts are added to the next sample as if they had no timestamp
+  static final long LATE_MILLIS = 10_000;
+  // state changes are published at most this often
+  private static final long PUBLISH_MILLIS = 50;
+  private volatile State myState = new State(0, Collections.emptyList(), Collections.emptyList(), null, null, null, Collections.emptyList(),
+                                             Collections.emptyList());
+  private boolean myDirty = false;
+  private long myLastPublish = 0;
+
+  private final Lock myUpdatedLock = new ReentrantLock();
+  private final Condition myUpdated = myUpdatedLock.newCondition();
+  private final AtomicInteger myUpdateCounter = new AtomicInteger();
+
+  private volatile int myMemoryBudgetMb = 64;
+  // gets exceptions thrown while commands were processed, see setErrorHandler()
+  private volatile Consumer<RuntimeException> myErrorHandler = e ->
+    System.getLogger(Aggregator.class.getName()).log(System.Logger.Level.ERROR, "Sputnik aggregation failed, the commands are dropped", e);
+  // flush commands in the processed batch, they are released after the state is published
+  private final List<FlushCmd> myFlushes = new ArrayList<>();
+
+  private List<WatchState> myWatches = Collections.emptyList();
+  // applied by command sources, not by the aggregation thread
+  private volatile List<BucketRule> myBucketRules = Collections.emptyList();
+
+  void start() {
+    if (myStarted.compareAndSet(false, true)) {
+      Thread thread = new Thread(this::processQueue, "Sputnik aggregation");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  void stop() {
+    myStop.set(true);
+  }
+
+  boolean isRunning() {
+    return !myStop.get();
+  }
+
+  int getMemoryBudgetMb() {
+    return myMemoryBudgetMb;
+  }
+
+  void setMemoryBudgetMb(int memoryBudgetMb) {
+    myMemoryBudgetMb = memoryBudgetMb;
+  }
+
+  // called on the aggregation thread when processing of commands failed, by default the error goes to System.Logger
+  void setErrorHandler(@NotNull Consumer<RuntimeException> handler) {
+    myErrorHandler = handler;
+  }
+
+  // importers use blocking variants of commands, they must not lose data and can wait for the aggregation thread
+
+  void importCount(@NotNull BucketRef ref, long count) throws InterruptedException {
+    for (long rest = count; rest > 0; rest -= Integer.MAX_VALUE) {
+      myCmds.put(new HandleCmd(ref, (int) Math.min(Integer.MAX_VALUE, rest), 1));
+    }
+  }
+
+  // value is fixed-point in the base unit, see ValueParser
+  void importHi(long value, @NotNull String unit) throws InterruptedException {
+    myCmds.put(new HiCmd(value, unit, 1));
+  }
+
+  // replaces the chart with the given values of its series, oldest first
+  void importChart(@NotNull String chartName, int secondsPerSample, @NotNull Map<String, int[]> series) throws InterruptedException {
+    myCmds.put(new ImportChartCmd(chartName, secondsPerSample, series));
+  }
+
+  // replaces all watches, they are evaluated on every chart sample
+  void setWatches(@NotNull List<Watch> watches) {
+    control(new WatchesCmd(watches)); // not offer, because settings change must not be lost
+  }
+
+  // replaces all bucket rules, buckets already counted are kept as they are
+  void setBucketRules(@NotNull List<BucketRule> rules) {
+    myBucketRules = List.copyOf(rules);
+  }
+
+  @NotNull List<BucketRule> getBucketRules() {
+    return myBucketRules;
+  }
+
+  // called on the aggregation thread when the condition of the watch held long enough
+  void watchBreached(@NotNull Watch watch, double value) {
+  }
+
+  // waits till commands queued so far are processed, then samples charts and publishes the state
+  void flush() throws InterruptedException {
+    FlushCmd cmd = new FlushCmd();
+    myCmds.put(cmd);
+    cmd.myDone.await();
+  }
+
+  int waitForUpdate(int lastShownState) {
+    myUpdatedLock.lock();
+    try {
+      if (lastShownState != myUpdateCounter.get()) {
+        return myUpdateCounter.get();
+      }
+      try {
+        myUpdated.await();
+      } catch (InterruptedException e) {
+        //
+      }
+      return myUpdateCounter.get();
+    } finally {
+      myUpdatedLock.unlock();
+    }
+  }
+
+  void h(@NotNull String histName, @NotNull String bucketName) {
+    h(histName, bucketName, 1);
+  }
+
+  // weight is the sampling ratio the command was sampled with, it stands for that many commands
+  void h(@NotNull String histName, @NotNull String bucketName, int weight) {
+    offer(new HistCmd(histName, bucketName, weight));
+  }
+
+  // binds the bucket to a handle, it's cheaper to add to the bucket with the handle than with names
+  @NotNull BucketRef declare(@NotNull String histName, @NotNull String bucketName) {
+    return new BucketRef(histName, bucketName);
+  }
+
+  void h(@NotNull BucketRef ref, int count, int weight) {
+    offer(new HandleCmd(ref, count, weight));
+  }
+
+  void hr(@NotNull String histName) {
+    offer(new ClearHistCmd(histName));
+  }
+
+  // makes the hist a tree: bucket names are split before any of the separators and counts are rolled up
+  // to every prefix, empty separators make the hist flat again
+  void ht(@NotNull String histName, @NotNull String separators) {
+    offer(new TreeCmd(histName, separators));
+  }
+
+  // expands or collapses the node of a tree hist, path is the prefix of bucket names the node stands for
+  void toggleNode(@NotNull String histName, @NotNull String path) {
+    control(new ToggleNodeCmd(histName, path)); // not offer, because we don't want to miss click in UI
+  }
+
+  void c(@NotNull String chartName, @NotNull String seriesName) {
+    c(chartName, seriesName, 1, 1);
+  }
+
+  void c(@NotNull String chartName, @NotNull String seriesName, int count) {
+    c(chartName, seriesName, count, 1);
+  }
+
+  void c(@NotNull String chartName, @NotNull String seriesName, int count, int weight) {
+    c(chartName, seriesName, count, weight, 0);
+  }
+
+  // timeMillis is the epoch time the event happened at in the source, 0 - when the command arrives, see CommandParser.epochMillis
+  void c(@NotNull String chartName, @NotNull String seriesName, int count, int weight, long timeMillis) {
+    offer(new ChartCmd(chartName, seriesName, count, false, true, weight, timeMillis));
+  }
+
+  // unlike counters gauges are not reset to 0 after sampling, delta changes the current gauge value
+  void g(@NotNull String chartName, @NotNull String seriesName, int value, boolean delta) {
+    offer(new ChartCmd(chartName, seriesName, value, true, delta, 1, 0));
+  }
+
+  // the gauge stops holding its last value when its source is gone, the series shows 0 from the next sample
+  void closeGauge(@NotNull String chartName, @NotNull String seriesName) {
+    control(new CloseGaugeCmd(chartName, seriesName));
+  }
+
+  void Hi(long value) {
+    Hi(value, 1);
+  }
+
+  void Hi(long value, int weight) {
+    HiFixed(value >= Long.MAX_VALUE / ValueParser.SCALE ? Long.MAX_VALUE :
+            value <= Long.MIN_VALUE / ValueParser.SCALE ? Long.MIN_VALUE : value * ValueParser.SCALE, "", weight);
+  }
+
+  // value is fixed-point with ValueParser.FRACTION_DIGITS digits in the base unit,
+  // a value with another base unit than the previous one clears the Hi
+  void HiFixed(long value, @NotNull String unit, int weight) {
+    offer(new HiCmd(value, unit, weight));
+  }
+
+  void H2(@NotNull String name, long x, long y) {
+    H2(name, x, y, 1);
+  }
+
+  void H2(@NotNull String name, long x, long y, int weight) {
+    offer(new H2Cmd(name, x, y, weight));
+  }
+
+  private void offer(@NotNull Cmd cmd) {
+    if (!myCmds.offer(cmd)) {
+      myOverloads.incrementAndGet();
+    }
+  }
+
+  // commands from UI, settings and run listeners are neither dropped nor block the caller (often the EDT) on a full queue,
+  // they wait in an unbounded queue instead, later ones too, so they are processed in the order they were sent
+  private void control(@NotNull Cmd cmd) {
+    if (!myControlCmds.isEmpty() || !myCmds.offer(cmd)) {
+      myControlCmds.add(cmd);
+    }
+  }
+
+  // parsers sample only 1 of this many commands which can be sampled
+  int getSamplingRatio() {
+    return mySamplingRatio;
+  }
+
+  // called by parsers which fall behind the text they have to parse
+  void overloaded() {
+    myOverloads.incrementAndGet();
+  }
+
+  @NotNull Run runStarted(@NotNull String runName) {
+    Run run = new Run(runName);
+    control(new RunCmd(run, true)); // not offer, because baseline must be captured before commands of the run
+    return run;
+  }
+
+  void runFinished(@NotNull Run run) {
+    control(new RunCmd(run, false));
+  }
+
+  void deleteHist(@NotNull String histName) {
+    control(new DeleteCmd("hist", histName)); // not offer, because we don't want to miss click on close in UI
+  }
+
+  void deleteChart(@NotNull String chartName) {
+    control(new DeleteCmd("chart", chartName)); // not offer, because we don't want to miss click on close in UI
+  }
+
+  void deleteHi() {
+    control(new DeleteCmd("hi", ""));
+  }
+
+  void deleteH2(@NotNull String name) {
+    control(new DeleteCmd("h2", name));
+  }
+
+  void deleteRunDiff() {
+    control(new DeleteCmd("diff", ""));
+  }
+
+  void deleteEvictionNote() {
+    control(new DeleteCmd("evicted", ""));
+  }
+
+  @NotNull List<ChartUi> getCharts() {
+    return myState.myCharts;
+  }
+
+  @Nullable RunDiff getRunDiff() {
+    return myState.myRunDiff;
+  }
+
+  @Nullable String getEvictionNote() {
+    return myState.myEvictionNote;
+  }
+
+  @NotNull List<HistUi> getHist() {
+    return myState.myHists;
+  }
+
+  @NotNull List<H2Ui> getH2s() {
+    return myState.myH2s;
+  }
+
+  @NotNull List<HiUi> getHis() {
+    HiUi hi = myState.myHi;
+    return hi != null ? Collections.singletonList(hi) : Collections.emptyList();
+  }
+
+  @NotNull List<String> getBreaches() {
+    return myState.myBreaches;
+  }
+
+  @NotNull State getState() {
+    return myState;
+  }
+
+  private void processQueue() {
+    List<Cmd> buf = new ArrayList<>(myCmds.size());
+    long nextSample = System.currentTimeMillis();
+    try {
+      while (!myStop.get()) {
+        buf.clear();
+        try {
+          long now = System.currentTimeMillis();
+          if (now >= nextSample) {
+            nextSample = now + SAMPLE_MILLIS;
+            sampleCharts(now);
+          }
+          if (myDirty && now - myLastPublish >= PUBLISH_MILLIS) {
+            publish(now);
+          }
+          long timeout = nextSample - now;
+          if (myDirty) {
+            timeout = Math.min(timeout, myLastPublish + PUBLISH_MILLIS - now);
+          }
+          Cmd cmd = myCmds.poll(Math.max(1, timeout), TimeUnit.MILLISECONDS);
+          if (cmd != null) {
+            buf.add(cmd);
+            myCmds.drainTo(buf);
+            myMaxQueueDepth = Math.max(myMaxQueueDepth, buf.size());
+            processCmds(buf);
+            if (!myFlushes.isEmpty()) {
+              long flushed = System.currentTimeMillis();
+              nextSample = flushed + SAMPLE_MILLIS;
+              sampleCharts(flushed);
+              publish(flushed);
+              releaseFlushes(buf);
+            }
+          }
+          // the queue was full when they were sent, so they are usually here before the next poll, at worst after its timeout
+          if (!myControlCmds.isEmpty()) {
+            buf.clear();
+            for (Cmd control = myControlCmds.poll(); control != null; control = myControlCmds.poll()) {
+              buf.add(control);
+            }
+            processCmds(buf);
+          }
+          adjustSamplingRatio(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+          // a bug must not stop the only aggregation thread: the rest of the batch is dropped,
+          // the state is published again on the next change
+          myErrorHandler.accept(e);
+          myDirty = false;
+          releaseFlushes(buf);
+        }
+      }
+    } catch (InterruptedException e) {
+      // exit
+    }
+  }
+
+  // flushes of the batch which were not processed yet are released too, their waiters must not hang
+  private void releaseFlushes(@NotNull List<Cmd> batch) {
+    for (Cmd cmd : batch) {
+      if (cmd instanceof FlushCmd) {
+        ((FlushCmd) cmd).myDone.countDown();
+      }
+    }
+    for (FlushCmd flush : myFlushes) {
+      flush.myDone.countDown();
+    }
+    myFlushes.clear();
+  }
+
+  // doubles the sampling ratio while the queue is filling up or parsers fall behind,
+  // halves it after the queue stayed almost empty for a while
+  private void adjustSamplingRatio(long now) {
+    if (now - myLastSamplingCheck < SAMPLING_CHECK_MILLIS) {
+      return;
+    }
+    myLastSamplingCheck = now;
+    int depth = myMaxQueueDepth;
+    myMaxQueueDepth = 0;
+    int ratio = mySamplingRatio;
+    if (myOverloads.getAndSet(0) > 0 || depth > QUEUE_CAPACITY / 4) {
+      mySamplingRatio = Math.min(MAX_SAMPLING_RATIO, ratio * 2);
+      myCalmSince = now;
+    } else if (depth > QUEUE_CAPACITY / 64) {
+      myCalmSince = now;
+    } else if (ratio > 1 && now - myCalmSince >= SAMPLING_CALM_MILLIS) {
+      mySamplingRatio = ratio / 2;
+      myCalmSince = now;
+    }
+  }
+
+  // builds new hist, chart and Hi uis only for changed data, other uis are taken from the current state
+  private void publish(long now) {
+    List<HistUi> histUis = new ArrayList<>(myHists.size());
+    for (Hist hist : myHists.values()) {
+      if (hist.myUi == null) {
+        hist.myUi = hist.createUi();
+      }
+      histUis.add(hist.myUi);
+    }
+    histUis.sort(Comparator.comparing(h -> h.myHistName));
+
+    List<ChartUi> chartUis = new ArrayList<>(myChartUis.size());
+    for (ChartUi chartUi : myChartUis.values()) {
+      if (chartUi.published == null) {
+        chartUi.published = chartUi.copy();
+      }
+      chartUis.add(chartUi.published);
+    }
+    chartUis.sort(Comparator.comparing(o -> o.name));
+
+    if (myRingBuf.writeIdx == 0) {
+      myLastHi = null;
+    } else if (myLastHi == null || myLastHi.myLastWriteIdx != myRingBuf.writeIdx) {
+      myLastHi = createHiUi(myRingBuf, myLastHi, myHiSamplingRatio, myHiUnit);
+    }
+
+    List<H2Ui> h2Uis = new ArrayList<>(myH2s.size());
+    for (H2 h2 : myH2s.values()) {
+      if (h2.myUi == null) {
+        h2.myUi = h2.createUi();
+      }
+      h2Uis.add(h2.myUi);
+    }
+    h2Uis.sort(Comparator.comparing(h -> h.myName));
+
+    List<String> breaches = new ArrayList<>();
+    for (WatchState watch : myWatches) {
+      if (watch.myBreached) {
+        breaches.add(watch.myWatch.myText + ", was " + watch.myWatch.format(watch.myValue));
+      }
+    }
+
+    myState = new State(myState.myVersion + 1,
+            Collections.unmodifiableList(histUis),
+            Collections.unmodifiableList(chartUis),
+            myLastHi,
+            myRunDiff,
+            myEvictionNote,
+            Collections.unmodifiableList(breaches),
+            Collections.unmodifiableList(h2Uis));
+    myDirty = false;
+    myLastPublish = now;
+
+    myUpdatedLock.lock();
+    try {
+      myUpdateCounter.incrementAndGet();
+      myUpdated.signal();
+    } finally {
+      myUpdatedLock.unlock();
+    }
+  }
+
+  @NotNull
+  private static HiUi createHiUi(@NotNull RingBuf ringBuf, @Nullable HiUi lastHi, int samplingRatio, @NotNull String unit) {
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    long startIdx = Math.max(0, ringBuf.writeIdx - ringBuf.data.length);
+    for (long idx = startIdx; idx < ringBuf.writeIdx; idx++) {
+      long elem = ringBuf.read(idx);
+      min = Math.min(elem, min);
+      max = Math.max(elem, max);
+    }
+
+    float[] hist = new float[100];
+    long[] values = new long[(int) (ringBuf.writeIdx - startIdx)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = ringBuf.read(startIdx + i);
+    }
+    Arrays.sort(values);
+
+    // values can be saturated at Long.MIN_VALUE or Long.MAX_VALUE, see ValueParser
+    min = min > Long.MIN_VALUE ? min - 1 : min;
+    max = max < Long.MAX_VALUE ? max + 1 : max;
+
+    if (lastHi != null) {
+      // tried smoothness (http://number-none.com/product/Toward%20Better%20Scripting,%20Part%201/index.html)
+      // don't like how it works: if smoothing too much it is too slow, but still changing,
+      // realized I don't want them to change at all. It is easier to reset hist when needed.
+      if (min > lastHi.myMin) {
+          min = lastHi.myMin;
+      }
+      if (max < lastHi.myMax) {
+          max = lastHi.myMax;
+      }
+    }
+
+    // positive values spanning orders of magnitude, like latencies, get buckets of the same ratio instead of the same width,
+    // otherwise all but the slowest values end up in the first bucket
+    boolean log = min > 0 && max / min >= HI_LOG_RATIO;
+    float weight = (float) (100.0 / (ringBuf.writeIdx - startIdx));
+    float maxPercent = 0;
+    for (long idx = startIdx; idx < ringBuf.writeIdx; idx++) {
+      long elem = ringBuf.read(idx);
+      // rounding of large values can put the max into the bucket after the last one
+      int bucket = Math.min(hist.length - 1, (int) (HiUi.position(elem, min, max, log) * hist.length));
+      hist[bucket] += weight;
+      maxPercent = Math.max(hist[bucket], maxPercent);
+    }
+
+    return new HiUi(hist, values, min, max, log, maxPercent, ringBuf.writeIdx, samplingRatio, unit);
+  }
+
+  static class SeriesUi {
+    final String name;
+    final int[] counts;
+    int writeIdx = 0;
+    boolean gauge;
+    // sum of all sampled counts, not only of the shown ones
+    long total;
+    int max;
+    int last;
+    // of the published copy, written and read by the ui thread
+    private volatile Decimation myDecimation;
+
+    SeriesUi(String name, int size) {
+      this.name = name;
+      counts = new int[size];
+    }
+
+    void addCount(int count, boolean gauge) {
+      counts[writeIdx] = count;
+      writeIdx = (writeIdx + 1) % counts.length;
+      this.gauge = gauge;
+      total += count;
+      max = Math.max(max, count);
+      last = count;
+    }
+
+    // corrects the count of the sample taken the given number of samples before the last one
+    void addAt(int back, int count) {
+      int idx = Math.floorMod(writeIdx - 1 - back, counts.length);
+      counts[idx] += count;
+      total += count;
+      max = Math.max(max, counts[idx]);
+      if (back == 0) {
+        last = counts[idx];
+      }
+      myDecimation = null;
+    }
+
+    // min and max of the last shown counts in each of the given number of columns, oldest first;
+    // computed once per published series, so painting costs O(columns) however long the history is
+    @NotNull
+    Decimation decimate(int shown, int columns) {
+      Decimation result = myDecimation;
+      if (result != null && result.myShown == shown && result.myColumns == columns) {
+        return result;
+      }
+      columns = Math.min(columns, shown);
+      int[] min = new int[columns];
+      int[] max = new int[columns];
+      Arrays.fill(min, Integer.MAX_VALUE);
+      Arrays.fill(max, Integer.MIN_VALUE);
+      int start = writeIdx - shown + counts.length;
+      for (int i = 0; i < shown; i++) {
+        int count = counts[(start + i) % counts.length];
+        int column = (int) ((long) i * columns / shown);
+        min[column] = Math.min(min[column], count);
+        max[column] = Math.max(max[column], count);
+      }
+      result = new Decimation(shown, columns, min, max);
+      myDecimation = result;
+      return result;
+    }
+
+    SeriesUi copy() {
+      SeriesUi result = new SeriesUi(name, counts.length);
+      System.arraycopy(counts, 0, result.counts, 0, counts.length);
+      result.writeIdx = writeIdx;
+      result.gauge = gauge;
+      result.total = total;
+      result.max = max;
+      result.last = last;
+      return result;
+    }
+  }
+
+  static final class Decimation {
+    final int myShown;
+    final int myColumns;
+    final int[] myMin;
+    final int[] myMax;
+
+    private Decimation(int shown, int columns, int @NotNull [] min, int @NotNull [] max) {
+      myShown = shown;
+      myColumns = columns;
+      myMin = min;
+      myMax = max;
+    }
+  }
+
+  static class ChartUi {
+    final int size;
+    final String name;
+    // imported charts have more seconds per sample
+    int secondsPerSample = 1;
+    final TreeMap<String, SeriesUi> series = new TreeMap<>();
+    long lastUpdate;
+    // the highest sampling ratio of counters in the last sample and the relative error of their sum
+    int samplingRatio = 1;
+    double samplingError;
+    // number of samples taken so far
+    long samples;
+    // breached watches of the shown samples
+    final List<Marker> markers = new ArrayList<>();
+    // time of every sample, by sample number modulo size
+    final long[] sampleEnds;
+    // counts with source timestamps older than the watermark, they were added to the next sample
+    long lateCounts;
+    // counts with source timestamps too far after the last sample to be a clock skew, e.g. times in a wrong unit,
+    // they were added to the next sample
+    long futureCounts;
+    // immutable copy in the published state, null if the chart changed after publishing
+    ChartUi published;
+
+    public ChartUi(String name) {
+      this(name, CHART_SAMPLES);
+    }
+
+    // samples in the shown history: all taken so far up to the chart size
+    int getShown() {
+      return (int) Math.max(2, Math.min(size, samples));
+    }
+
+    public ChartUi(String name, int size) {
+      this.name = name;
+      this.size = size;
+      sampleEnds = new long[size];
+    }
+
+    void addCount(String seriesName, int count, boolean gauge) {
+      SeriesUi seriesUi = series.get(seriesName);
+      if (seriesUi == null) {
+        seriesUi = new SeriesUi(seriesName, size);
+        series.put(seriesName, seriesUi);
+      }
+      seriesUi.addCount(count, gauge);
+    }
+
+    // adds the count to the taken sample whose interval contains the time, returns false if the time is after
+    // the last sample, so the count belongs to the next one, or if the time is older than the watermark
+    boolean addAt(String seriesName, long time, int count) {
+      if (samples == 0 || secondsPerSample > 1) {
+        return false;
+      }
+      long last = samples - 1;
+      long lastEnd = sampleEnds[(int) (last % size)];
+      if (time > lastEnd) {
+        if (time > lastEnd + LATE_MILLIS) {
+          futureCounts += count;
+          published = null;
+        }
+        return false;
+      }
+      if (time <= lastEnd - LATE_MILLIS) {
+        lateCounts += count;
+        return false;
+      }
+      // sample s covers (end of s - 1, end of s]
+      long sample = last;
+      long oldest = Math.max(0, samples - size);
+      while (sample > oldest && sampleEnds[(int) ((sample - 1) % size)] >= time) {
+        sample--;
+      }
+      SeriesUi seriesUi = series.get(seriesName);
+      if (seriesUi == null) {
+        // aligned with other series: its last slot stands for the last sample
+        seriesUi = new SeriesUi(seriesName, size);
+        series.put(seriesName, seriesUi);
+      }
+      seriesUi.addAt((int) (last - sample), count);
+      published = null;
+      return true;
+    }
+
+    ChartUi copy() {
+      ChartUi result = new ChartUi(name, size);
+      result.secondsPerSample = secondsPerSample;
+      for (SeriesUi value : series.values()) {
+        result.series.put(value.name, value.copy());
+      }
+      result.samplingRatio = samplingRatio;
+      result.samplingError = samplingError;
+      result.samples = samples;
+      result.lateCounts = lateCounts;
+      result.futureCounts = futureCounts;
+      result.markers.addAll(markers);
+      return result;
+    }
+  }
+
+  static final class Marker {
+    final long mySample;
+    final String myText;
+
+    Marker(long sample, @NotNull String text) {
+      mySample = sample;
+      myText = text;
+    }
+  }
+
+  private void sampleCharts(long now) {
+    for (Map.Entry<String, Map<String, Counter>> kv : myCharts.entrySet()) {
+      myDirty = true;
+      String chartName = kv.getKey();
+      ChartUi chartUi = myChartUis.get(chartName);
+      if (chartUi == null) {
+        chartUi = new ChartUi(chartName);
+        chartUi.lastUpdate = now;
+        myChartUis.put(chartName, chartUi);
+      }
+      chartUi.published = null;
+      Map<String, Counter> counters = kv.getValue();
+      long sampledCount = 0;
+      double sampledVariance = 0;
+      int samplingRatio = 1;
+      for (Map.Entry<String, Counter> counterVal : counters.entrySet()) {
+        String series = counterVal.getKey();
+        Counter counter = counterVal.getValue();
+        chartUi.addCount(series, counter.myCount, counter.myGauge);
+        if (counter.myUpdated) {
+          chartUi.lastUpdate = now;
+        }
+        counter.myUpdated = false;
+        if (!counter.myGauge) {
+          sampledCount += counter.myCount;
+          sampledVariance += counter.myVariance;
+          samplingRatio = Math.max(samplingRatio, counter.mySamplingRatio);
+          counter.myCount = 0;
+          counter.myVariance = 0;
+          counter.mySamplingRatio = 1;
+        }
+      }
+      chartUi.samplingRatio = samplingRatio;
+      chartUi.samplingError = relativeError(sampledVariance, sampledCount);
+      chartUi.sampleEnds[(int) (chartUi.samples % chartUi.size)] = now;
+      chartUi.samples++;
+      long firstShown = chartUi.samples - chartUi.size;
+      chartUi.markers.removeIf(m -> m.mySample < firstShown);
+    }
+    myDirty |= evaluateWatches(now);
+    myDirty |= enforceMemoryBudget(now);
+  }
+
+  private void processCmds(@NotNull List<Cmd> cmds) {
+    long now = System.currentTimeMillis();
+    myDirty = true;
+    for (Cmd cmd : cmds) {
+      if (cmd instanceof ClearHistCmd) {
+        Hist hist = myHists.get(((ClearHistCmd) cmd).myHistName);
+        if (hist != null) {
+          hist.clear();
+          hist.myLastUpdate = now;
+        }
+      } else if (cmd instanceof TreeCmd) {
+        TreeCmd treeCmd = (TreeCmd) cmd;
+        myHists.computeIfAbsent(treeCmd.myHistName, Hist::new).setSeparators(treeCmd.mySeparators);
+      } else if (cmd instanceof ToggleNodeCmd) {
+        Hist hist = myHists.get(((ToggleNodeCmd) cmd).myHistName);
+        if (hist != null) {
+          hist.toggle(((ToggleNodeCmd) cmd).myPath);
+        }
+      } else if (cmd instanceof HistCmd) {
+        HistCmd histCmd = (HistCmd) cmd;
+        Hist hist = myHists.computeIfAbsent(histCmd.myHistName, Hist::new);
+        hist.add(histCmd.myBucketName, histCmd.myWeight, now);
+        hist.sampled(1, histCmd.myWeight);
+      } else if (cmd instanceof HandleCmd) {
+        HandleCmd handleCmd = (HandleCmd) cmd;
+        BucketRef ref = handleCmd.myRef;
+        Bucket bucket = ref.myBucket;
+        if (bucket == null || bucket.myRemoved) {
+          bucket = myHists.computeIfAbsent(ref.myHistName, Hist::new).add(ref.myBucketName, 0, now);
+          ref.myBucket = bucket;
+        }
+        bucket.add(scale(handleCmd.myCount, handleCmd.myWeight), now);
+        bucket.myHist.sampled(handleCmd.myCount, handleCmd.myWeight);
+      } else if (cmd instanceof ChartCmd) {
+        ChartCmd chartCmd = (ChartCmd) cmd;
+        Map<String, Counter> series = myCharts.computeIfAbsent(chartCmd.myChartName, k -> new HashMap<>());
+        Counter counter = series.computeIfAbsent(chartCmd.mySeriesName, k -> new Counter());
+        counter.myUpdated = true;
+        counter.myGauge |= chartCmd.myGauge;
+        int count = scale(chartCmd.myCount, chartCmd.myWeight);
+        ChartUi chartUi = chartCmd.myTime > 0 && !chartCmd.myGauge ? myChartUis.get(chartCmd.myChartName) : null;
+        if (chartUi == null || !chartUi.addAt(chartCmd.mySeriesName, chartCmd.myTime, count)) {
+          counter.myCount = chartCmd.myDelta ? counter.myCount + count : count;
+        }
+        if (!chartCmd.myGauge) {
+          counter.myVariance += sampledVariance(chartCmd.myCount, chartCmd.myWeight);
+          counter.mySamplingRatio = Math.max(counter.mySamplingRatio, chartCmd.myWeight);
+          Map<String, Long> totals = myChartTotals.computeIfAbsent(chartCmd.myChartName, k -> new HashMap<>());
+          totals.merge(chartCmd.mySeriesName, (long) count, Long::sum);
+        }
+      } else if (cmd instanceof DeleteCmd) {
+        if (((DeleteCmd) cmd).myType.equals("hist")) {
+          removeHist(((DeleteCmd) cmd).myName);
+        } else if (((DeleteCmd) cmd).myType.equals("chart")) {
+          myCharts.remove(((DeleteCmd) cmd).myName);
+          myChartUis.remove(((DeleteCmd) cmd).myName);
+          myChartTotals.remove(((DeleteCmd) cmd).myName);
+        } else if (((DeleteCmd) cmd).myType.equals("hi")) {
+          myRingBuf.clear();
+          myLastHi = null;
+          for (WatchState watch : myWatches) {
+            watch.myMatching = 0;
+          }
+        } else if (((DeleteCmd) cmd).myType.equals("h2")) {
+          myH2s.remove(((DeleteCmd) cmd).myName);
+        } else if (((DeleteCmd) cmd).myType.equals("diff")) {
+          myRunDiff = null;
+        } else if (((DeleteCmd) cmd).myType.equals("evicted")) {
+          myEvictionNote = null;
+        }
+      } else if (cmd instanceof CloseGaugeCmd) {
+        CloseGaugeCmd closeCmd = (CloseGaugeCmd) cmd;
+        Map<String, Counter> series = myCharts.get(closeCmd.myChartName);
+        Counter counter = series != null ? series.get(closeCmd.mySeriesName) : null;
+        if (counter != null && counter.myGauge) {
+          counter.myGauge = false;
+          counter.myCount = 0;
+        }
+      } else if (cmd instanceof HiCmd) {
+        long value = ((HiCmd) cmd).myValue;
+        if (!myHiUnit.equals(((HiCmd) cmd).myUnit)) {
+          // values in different units can't be compared, the Hi starts over
+          myHiUnit = ((HiCmd) cmd).myUnit;
+          myRingBuf.clear();
+          myLastHi = null;
+          for (WatchState watch : myWatches) {
+            watch.myMatching = 0;
+          }
+        }
+        for (WatchState watch : myWatches) {
+          watch.hiWritten(myRingBuf, value);
+        }
+        myRingBuf.write(value);
+        myHiSamplingRatio = ((HiCmd) cmd).myWeight;
+      } else if (cmd instanceof H2Cmd) {
+        H2Cmd h2Cmd = (H2Cmd) cmd;
+        myH2s.computeIfAbsent(h2Cmd.myName, H2::new).add(h2Cmd.myX, h2Cmd.myY, h2Cmd.myWeight, now);
+      } else if (cmd instanceof ImportChartCmd) {
+        ImportChartCmd importCmd = (ImportChartCmd) cmd;
+        int size = importCmd.mySeries.values().iterator().next().length;
+        ChartUi chartUi = new ChartUi(importCmd.myChartName, size);
+        chartUi.secondsPerSample = importCmd.mySecondsPerSample;
+        chartUi.lastUpdate = now;
+        for (Map.Entry<String, int[]> series : importCmd.mySeries.entrySet()) {
+          for (int count : series.getValue()) {
+            chartUi.addCount(series.getKey(), count, false);
+          }
+        }
+        chartUi.samples = size;
+        myChartUis.put(importCmd.myChartName, chartUi);
+      } else if (cmd instanceof WatchesCmd) {
+        myWatches = new ArrayList<>();
+        for (Watch watch : ((WatchesCmd) cmd).myWatches) {
+          WatchState state = new WatchState(watch);
+          if (watch.myKind.equals(Watch.HI)) {
+            for (long idx = Math.max(0, myRingBuf.writeIdx - myRingBuf.data.length); idx < myRingBuf.writeIdx; idx++) {
+              if (watch.test(myRingBuf.read(idx))) {
+                state.myMatching++;
+              }
+            }
+          }
+          myWatches.add(state);
+        }
+      } else if (cmd instanceof FlushCmd) {
+        myFlushes.add((FlushCmd) cmd);
+      } else if (cmd instanceof RunCmd) {
+        RunCmd runCmd = (RunCmd) cmd;
+        if (runCmd.myStart) {
+          runCmd.myRun.start(copyHists(), copyChartTotals(), myRingBuf.writeIdx);
+        } else {
+          addRunSnapshot(runCmd.myRun.finish(copyHists(), copyChartTotals(), myRingBuf, myHiUnit));
+        }
+      }
+    }
+  }
+
+  // costs O(1) per watch: Hi watches keep the number of matching values in the ring buffer up to date,
+  // share and rate watches keep the resolved bucket and series
+  private boolean evaluateWatches(long now) {
+    boolean changed = false;
+    for (WatchState state : myWatches) {
+      Watch watch = state.myWatch;
+      if (!holds(state)) {
+        changed |= state.myBreached;
+        state.myBreached = false;
+        state.mySince = -1;
+        continue;
+      }
+      if (state.mySince < 0) {
+        state.mySince = now;
+      }
+      if (!state.myBreached && now - state.mySince >= watch.myForMillis) {
+        state.myBreached = true;
+        changed = true;
+        if (watch.myKind.equals(Watch.HI)) {
+          state.myValue = hiPercentile(watch.myPercentile);
+        } else if (watch.myKind.equals(Watch.RATE)) {
+          state.myChartUi.markers.add(new Marker(state.myChartUi.samples - 1, watch.myText));
+          state.myChartUi.published = null;
+        }
+        watchBreached(watch, state.myValue);
+      }
+    }
+    return changed;
+  }
+
+  private boolean holds(@NotNull WatchState state) {
+    Watch watch = state.myWatch;
+    if (watch.myKind.equals(Watch.HI)) {
+      int n = (int) Math.min(myRingBuf.writeIdx, myRingBuf.data.length);
+      if (n == 0 || !watch.isComparable(myHiUnit)) {
+        return false;
+      }
+      // the percentile is the k-th smallest value, it is above the threshold when n - k values are,
+      // and it is below the threshold when k + 1 values are
+      int k = RunSnapshot.percentileIdx(n, watch.myPercentile);
+      return state.myMatching >= (watch.isUpperBound() ? n - k : k + 1);
+    }
+    if (watch.myKind.equals(Watch.SHARE)) {
+      Bucket bucket = state.myBucket;
+      Hist hist;
+      if (bucket == null || bucket.myRemoved) {
+        hist = myHists.get(watch.myName);
+        bucket = hist != null ? hist.myBuckets.get(watch.mySubName) : null;
+        state.myBucket = bucket;
+      } else {
+        hist = bucket.myHist;
+      }
+      if (hist == null || hist.myTotal == 0) {
+        return false;
+      }
+      state.myValue = bucket != null ? (double) bucket.myCount / hist.myTotal : 0;
+      return watch.test(state.myValue);
+    }
+    ChartUi chartUi = myChartUis.get(watch.myName);
+    if (chartUi == null) {
+      return false;
+    }
+    if (chartUi != state.myChartUi || state.mySeries == null) {
+      state.myChartUi = chartUi;
+      state.mySeries = chartUi.series.get(watch.mySubName);
+    }
+    if (state.mySeries == null) {
+      return false;
+    }
+    state.myValue = state.mySeries.last;
+    return watch.test(state.myValue);
+  }
+
+  private long hiPercentile(double p) {
+    int n = (int) Math.min(myRingBuf.writeIdx, myRingBuf.data.length);
+    long[] values = new long[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = myRingBuf.read(myRingBuf.writeIdx - n + i);
+    }
+    Arrays.sort(values);
+    return values[RunSnapshot.percentileIdx(n, p)];
+  }
+
+  private static int scale(int count, int weight) {
+    return (int) Math.min(Integer.MAX_VALUE, (long) count * weight);
+  }
+
+  // variance of count * weight when the command was kept with probability 1 / weight
+  private static double sampledVariance(int count, int weight) {
+    return (double) weight * (weight - 1) * count * count;
+  }
+
+  // half-width of the 95% confidence interval relative to the estimated count
+  static double relativeError(double variance, long count) {
+    return count > 0 ? 1.96 * Math.sqrt(variance) / count : 0;
+  }
+
+  private void addRunSnapshot(@NotNull RunSnapshot snapshot) {
+    ArrayDeque<RunSnapshot> runs = myRuns.computeIfAbsent(snapshot.myRunName, k -> new ArrayDeque<>());
+    runs.addLast(snapshot);
+    while (runs.size() > RUNS_TO_KEEP) {
+      runs.removeFirst();
+    }
+    if (runs.size() > 1) {
+      Iterator<RunSnapshot> it = runs.descendingIterator();
+      RunSnapshot after = it.next();
+      RunSnapshot before = it.next();
+      myRunDiff = new RunDiff(before, after);
+    }
+  }
+
+  @NotNull
+  private Map<String, Map<String, Long>> copyHists() {
+    Map<String, Map<String, Long>> result = new HashMap<>();
+    for (Map.Entry<String, Hist> kv : myHists.entrySet()) {
+      result.put(kv.getKey(), kv.getValue().copyCounts());
+    }
+    return result;
+  }
+
+  @NotNull
+  private Map<String, Map<String, Long>> copyChartTotals() {
+    Map<String, Map<String, Long>> result = new HashMap<>();
+    for (Map.Entry<String, Map<String, Long>> kv : myChartTotals.entrySet()) {
+      result.put(kv.getKey(), new HashMap<>(kv.getValue()));
+    }
+    return result;
+  }
+
+  static final class Run {
+    private final String myName;
+    private long myStartMillis;
+    private Map<String, Map<String, Long>> myHistsBase = Collections.emptyMap();
+    private Map<String, Map<String, Long>> myChartsBase = Collections.emptyMap();
+    private long myHiStartIdx;
+
+    Run(@NotNull String name) {
+      myName = name;
+    }
+
+    private void start(@NotNull Map<String, Map<String, Long>> hists, @NotNull Map<String, Map<String, Long>> charts, long hiIdx) {
+      myStartMillis = System.currentTimeMillis();
+      myHistsBase = hists;
+      myChartsBase = charts;
+      myHiStartIdx = hiIdx;
+    }
+
+    // subtracts the state at the start of the run, if a hist was reset during the run its current counts are used as is
+    @NotNull
+    private RunSnapshot finish(@NotNull Map<String, Map<String, Long>> hists, @NotNull Map<String, Map<String, Long>> charts, @NotNull RingBuf hi,
+                               @NotNull String hiUnit) {
+      for (Map.Entry<String, Map<String, Long>> kv : hists.entrySet()) {
+        Map<String, Long> base = myHistsBase.getOrDefault(kv.getKey(), Collections.emptyMap());
+        boolean reset = false;
+        for (Map.Entry<String, Long> bucket : kv.getValue().entrySet()) {
+          reset |= bucket.getValue() < base.getOrDefault(bucket.getKey(), 0L);
+        }
+        if (!reset) {
+          kv.getValue().replaceAll((bucket, count) -> count - base.getOrDefault(bucket, 0L));
+          kv.getValue().values().removeIf(count -> count == 0);
+        }
+      }
+      hists.values().removeIf(Map::isEmpty);
+
+      for (Map.Entry<String, Map<String, Long>> kv : charts.entrySet()) {
+        Map<String, Long> base = myChartsBase.getOrDefault(kv.getKey(), Collections.emptyMap());
+        kv.getValue().replaceAll((series, count) -> Math.max(0, count - base.getOrDefault(series, 0L)));
+      }
+
+      long startIdx = hi.writeIdx < myHiStartIdx ? 0 : myHiStartIdx; // Hi was cleared during the run
+      startIdx = Math.max(startIdx, hi.writeIdx - hi.data.length);
+      long[] hiValues = new long[(int) (hi.writeIdx - startIdx)];
+      for (int i = 0; i < hiValues.length; i++) {
+        hiValues[i] = hi.read(startIdx + i);
+      }
+      Arrays.sort(hiValues);
+
+      myHistsBase = Collections.emptyMap();
+      myChartsBase = Collections.emptyMap();
+      return new RunSnapshot(myName, myStartMillis, System.currentTimeMillis(), hists, charts, hiValues, hiUnit);
+    }
+  }
+
+  // evicts stale metrics, then compacts hists, then drops old run snapshots and then evicts anything
+  // least recently updated until the approximate size of the state fits into the budget
+  private boolean enforceMemoryBudget(long now) {
+    long budget = getMemoryBudgetMb() * 1024L * 1024L;
+    long used = 0;
+    List<Metric> metrics = new ArrayList<>();
+    for (Map.Entry<String, Hist> kv : myHists.entrySet()) {
+      used += kv.getValue().myBytes;
+      metrics.add(new Metric("hist", kv.getKey(), kv.getValue().myLastUpdate, kv.getValue().myBytes));
+    }
+    for (Map.Entry<String, Map<String, Counter>> kv : myCharts.entrySet()) {
+      String chartName = kv.getKey();
+      ChartUi chartUi = myChartUis.get(chartName);
+      long bytes = chartBytes(chartName, kv.getValue().keySet(), chartUi != null ? chartUi.size : CHART_SAMPLES);
+      used += bytes;
+      metrics.add(new Metric("chart", chartName, chartUi != null ? chartUi.lastUpdate : now, bytes));
+    }
+    // imported charts have no counters, they are updated only when imported
+    for (ChartUi chartUi : myChartUis.values()) {
+      if (!myCharts.containsKey(chartUi.name)) {
+        long bytes = chartBytes(chartUi.name, chartUi.series.keySet(), chartUi.size);
+        used += bytes;
+        metrics.add(new Metric("chart", chartUi.name, chartUi.lastUpdate, bytes));
+      }
+    }
+    for (H2 h2 : myH2s.values()) {
+      used += H2.BYTES;
+      metrics.add(new Metric("h2", h2.myName, h2.myLastUpdate, H2.BYTES));
+    }
+    for (ArrayDeque<RunSnapshot> runs : myRuns.values()) {
+      for (RunSnapshot run : runs) {
+        used += run.myBytes;
+      }
+    }
+    if (used <= budget) {
+      return false;
+    }
+
+    metrics.sort(Comparator.comparingLong(m -> m.myLastUpdate));
+    List<String> dropped = new ArrayList<>();
+    Iterator<Metric> it = metrics.iterator();
+    while (used > budget && it.hasNext()) {
+      Metric metric = it.next();
+      if (now - metric.myLastUpdate < STALE_MILLIS) {
+        break;
+      }
+      used -= evict(metric);
+      it.remove();
+      dropped.add(metric.myType + " '" + metric.myName + "'");
+    }
+
+    List<Hist> hists = new ArrayList<>(myHists.values());
+    hists.sort(Comparator.comparingLong(h -> h.myLastUpdate));
+    for (Hist hist : hists) {
+      if (used <= budget) {
+        break;
+      }
+      int buckets = hist.myBuckets.size();
+      long bytes = hist.myBytes;
+      hist.compact(KEEP_BUCKETS, hist.myBytes - (used - budget), now);
+      used -= bytes - hist.myBytes;
+      if (hist.myBuckets.size() < buckets) {
+        dropped.add((buckets - hist.myBuckets.size()) + " buckets of '" + hist.myName + "' into '" + EVICTED_BUCKET + "'");
+      }
+    }
+
+    int droppedRuns = 0;
+    while (used > budget) {
+      ArrayDeque<RunSnapshot> oldest = null;
+      for (ArrayDeque<RunSnapshot> runs : myRuns.values()) {
+        if (!runs.isEmpty() && (oldest == null || runs.getFirst().myEndMillis < oldest.getFirst().myEndMillis)) {
+          oldest = runs;
+        }
+      }
+      if (oldest == null) {
+        break;
+      }
+      used -= oldest.removeFirst().myBytes;
+      droppedRuns++;
+    }
+    myRuns.values().removeIf(ArrayDeque::isEmpty);
+    if (droppedRuns > 0) {
+      dropped.add(droppedRuns + " run snapshots");
+    }
+
+    it = metrics.iterator();
+    while (used > budget && it.hasNext()) {
+      Metric metric = it.next();
+      used -= evict(metric);
+      dropped.add(metric.myType + " '" + metric.myName + "'");
+    }
+
+    if (dropped.isEmpty()) {
+      return false;
+    }
+    String droppedText = String.join(", ", dropped.subList(0, Math.min(5, dropped.size())));
+    if (dropped.size() > 5) {
+      droppedText += " and " + (dropped.size() - 5) + " more";
+    }
+    myEvictionNote = "Memory budget of " + (budget / 1024 / 1024) + " MB exceeded, dropped " + droppedText;
+    return true;
+  }
+
+  private void removeHist(@NotNull String histName) {
+    Hist hist = myHists.remove(histName);
+    if (hist != null) {
+      hist.remove();
+    }
+  }
+
+  private long evict(@NotNull Metric metric) {
+    if (metric.myType.equals("hist")) {
+      removeHist(metric.myName);
+    } else if (metric.myType.equals("h2")) {
+      myH2s.remove(metric.myName);
+    } else {
+      myCharts.remove(metric.myName);
+      myChartUis.remove(metric.myName);
+      myChartTotals.remove(metric.myName);
+    }
+    return metric.myBytes;
+  }
+
+  private static long chartBytes(@NotNull String chartName, @NotNull Set<String> series, int size) {
+    long result = OBJECT_BYTES + stringBytes(chartName);
+    for (String seriesName : series) {
+      // counter, total, sampled values and their map entries
+      result += stringBytes(seriesName) + 4 * ENTRY_BYTES + 3 * OBJECT_BYTES + 4L * size;
+    }
+    return result;
+  }
+
+  // rough estimates for a 64-bit jvm with compressed oops
+  static final long OBJECT_BYTES = 16;
+  static final long ENTRY_BYTES = 48;
+
+  static long stringBytes(@NotNull String s) {
+    return 40 + s.length();
+  }
+
+  private static final class Counter {
+    private int myCount;
+    // of the count since the last sampling, 0 if no command was sampled
+    private double myVariance;
+    private int mySamplingRatio = 1;
+    private boolean myGauge;
+    // got a command since the last sampling
+    private boolean myUpdated;
+  }
+
+  private static final class WatchState {
+    private final Watch myWatch;
+    // Hi values in the ring buffer passing the test of the watch
+    private int myMatching;
+    private Bucket myBucket;
+    private ChartUi myChartUi;
+    private SeriesUi mySeries;
+    private double myValue;
+    // since when the condition holds, -1 if it doesn't
+    private long mySince = -1;
+    private boolean myBreached;
+
+    private WatchState(@NotNull Watch watch) {
+      myWatch = watch;
+    }
+
+    // called before the value is written to the ring buffer
+    private void hiWritten(@NotNull RingBuf ringBuf, long value) {
+      if (!myWatch.myKind.equals(Watch.HI)) {
+        return;
+      }
+      if (ringBuf.writeIdx >= ringBuf.data.length && myWatch.test(ringBuf.read(ringBuf.writeIdx))) {
+        myMatching--; // overwritten
+      }
+      if (myWatch.test(value)) {
+        myMatching++;
+      }
+    }
+  }
+
+  private static final class Metric {
+    private final String myType;
+    private final String myName;
+    private final long myLastUpdate;
+    private final long myBytes;
+
+    private Metric(@NotNull String type, @NotNull String name, long lastUpdate, long bytes) {
+      myType = type;
+      myName = name;
+      myLastUpdate = lastUpdate;
+      myBytes = bytes;
+    }
+  }
+
+  private static final class Hist {
+    private final String myName;
+    // bucket name -> bucket
+    private final HashMap<String, Bucket> myBuckets = new HashMap<>();
+    private long myBytes;
+    private long myLastUpdate;
+    private boolean myRemoved;
+    private long myTotal;
+    // of the total count since the last reset, 0 if no command was sampled
+    private double myVariance;
+    // sampling ratio of the last command
+    private int mySamplingRatio = 1;
+    // ui in the published state, null if the hist changed after publishing
+    private HistUi myUi;
+    // tree hists split bucket names before these chars, null for flat hists
+    private String mySeparators;
+    private Node myRoot;
+    private long myTreeBytes;
+
+    private Hist(@NotNull String name) {
+      myName = name;
+      myBytes = OBJECT_BYTES * 4 + stringBytes(name);
+    }
+
+    @NotNull
+    private Bucket add(@NotNull String bucketName, long count, long now) {
+      Bucket bucket = myBuckets.get(bucketName);
+      if (bucket == null) {
+        bucket = new Bucket(this, bucketName);
+        myBuckets.put(bucketName, bucket);
+        myBytes += bucketBytes(bucketName);
+        if (myRoot != null) {
+          bucket.myNode = node(bucketName);
+          bucket.myNode.myBucket = bucket;
+        }
+      }
+      bucket.add(count, now);
+      return bucket;
+    }
+
+    private void sampled(int count, int weight) {
+      myVariance += sampledVariance(count, weight);
+      mySamplingRatio = weight;
+    }
+
+    private void clear() {
+      myUi = null;
+      if (myRoot != null) {
+        myRoot = new Node(null, "");
+        myBytes -= myTreeBytes;
+        myTreeBytes = 0;
+      }
+      myTotal = 0;
+      myVariance = 0;
+      mySamplingRatio = 1;
+      for (Bucket bucket : myBuckets.values()) {
+        bucket.myRemoved = true;
+        myBytes -= bucketBytes(bucket.myName);
+      }
+      myBuckets.clear();
+    }
+
+    private void remove() {
+      clear();
+      myRemoved = true;
+    }
+
+    // folds least recently updated buckets into EVICTED_BUCKET until the hist fits into the given size
+    private void compact(int keepBuckets, long targetBytes, long now) {
+      List<Bucket> buckets = new ArrayList<>(myBuckets.values());
+      buckets.sort(Comparator.comparingLong(b -> b.myLastUpdate));
+      long evicted = 0;
+      // room for EVICTED_BUCKET added at the end
+      long reserved = myBuckets.containsKey(EVICTED_BUCKET) ? 0 :
+                      bucketBytes(EVICTED_BUCKET) + (myRoot != null ? nodeBytes(EVICTED_BUCKET) : 0);
+      Iterator<Bucket> it = buckets.iterator();
+      while (myBytes + reserved > targetBytes && myBuckets.size() > keepBuckets && it.hasNext()) {
+        Bucket bucket = it.next();
+        if (bucket.myName.equals(EVICTED_BUCKET)) {
+          continue;
+        }
+        evicted += bucket.myCount;
+        myTotal -= bucket.myCount;
+        removeNode(bucket);
+        bucket.myRemoved = true;
+        myBytes -= bucketBytes(bucket.myName);
+        myBuckets.remove(bucket.myName);
+      }
+      if (evicted > 0) {
+        add(EVICTED_BUCKET, evicted, now);
+      }
+    }
+
+    @NotNull
+    private Map<String, Long> copyCounts() {
+      Map<String, Long> result = new HashMap<>();
+      for (Bucket bucket : myBuckets.values()) {
+        result.put(bucket.myName, bucket.myCount);
+      }
+      return result;
+    }
+
+    private void setSeparators(@NotNull String separators) {
+      String newSeparators = separators.isEmpty() ? null : separators;
+      if (Objects.equals(mySeparators, newSeparators)) {
+        return;
+      }
+      mySeparators = newSeparators;
+      myUi = null;
+      myBytes -= myTreeBytes;
+      myTreeBytes = 0;
+      myRoot = null;
+      for (Bucket bucket : myBuckets.values()) {
+        bucket.myNode = null;
+      }
+      if (mySeparators == null) {
+        return;
+      }
+      // done once when the hist becomes a tree, after that nodes are updated with their buckets
+      myRoot = new Node(null, "");
+      for (Bucket bucket : myBuckets.values()) {
+        Node node = node(bucket.myName);
+        node.myBucket = bucket;
+        bucket.myNode = node;
+        node.addCount(bucket.myCount);
+      }
+    }
+
+    // end of the part of the bucket name starting at start, parts end before separators
+    private int partEnd(@NotNull String name, int start) {
+      int end = start + 1;
+      while (end < name.length() && mySeparators.indexOf(name.charAt(end)) < 0) {
+        end++;
+      }
+      return end;
+    }
+
+    // node of the bucket name, creates missing nodes
+    @NotNull
+    private Node node(@NotNull String name) {
+      Node node = myRoot;
+      for (int start = 0; start < name.length(); ) {
+        int end = partEnd(name, start);
+        String key = name.substring(start, end);
+        if (node.myChildren == null) {
+          node.myChildren = new HashMap<>();
+        }
+        Node child = node.myChildren.get(key);
+        if (child == null) {
+          child = new Node(node, key);
+          node.myChildren.put(key, child);
+          myTreeBytes += nodeBytes(key);
+          myBytes += nodeBytes(key);
+        }
+        node = child;
+        start = end;
+      }
+      return node;
+    }
+
+    // subtracts the count of the removed bucket from its prefixes and drops nodes left without buckets
+    private void removeNode(@NotNull Bucket bucket) {
+      Node node = bucket.myNode;
+      if (node == null) {
+        return;
+      }
+      node.addCount(-bucket.myCount);
+      node.myBucket = null;
+      while (node.myParent != null && node.myBucket == null && (node.myChildren == null || node.myChildren.isEmpty())) {
+        node.myParent.myChildren.remove(node.myKey);
+        myTreeBytes -= nodeBytes(node.myKey);
+        myBytes -= nodeBytes(node.myKey);
+        node = node.myParent;
+      }
+    }
+
+    private void toggle(@NotNull String path) {
+      if (myRoot == null) {
+        return;
+      }
+      Node node = myRoot;
+      for (int start = 0; start < path.length() && node != null; ) {
+        int end = partEnd(path, start);
+        node = node.myChildren != null ? node.myChildren.get(path.substring(start, end)) : null;
+        start = end;
+      }
+      if (node != null && node != myRoot) {
+        node.myExpanded = !node.myExpanded;
+        myUi = null;
+      }
+    }
+
+    @NotNull
+    private HistUi createUi() {
+      if (myRoot != null) {
+        return createTreeUi();
+      }
+      List<Bucket> buckets = new ArrayList<>(myBuckets.values());
+      buckets.sort((o1, o2) -> -Long.compare(o1.myCount, o2.myCount));
+      List<String> vals = new ArrayList<>(buckets.size());
+      long[] counts = new long[buckets.size()];
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        long itemCount = buckets.get(i).myCount;
+        vals.add(buckets.get(i).myName);
+        counts[i] = itemCount;
+        total += itemCount;
+      }
+      return new HistUi(myName, vals, counts, total, mySamplingRatio, relativeError(myVariance, total));
+    }
+
+    // only children of expanded nodes are materialized, so the cost doesn't depend on the number of leaves
+    @NotNull
+    private HistUi createTreeUi() {
+      HistUi.Rows rows = new HistUi.Rows();
+      addRows(myRoot, "", 0, rows);
+      long total = myRoot.myCount;
+      return new HistUi(myName, rows, total, mySamplingRatio, relativeError(myVariance, total));
+    }
+
+    private static void addRows(@NotNull Node node, @NotNull String path, int level, @NotNull HistUi.Rows rows) {
+      if (node.myBucket != null && node.myBucket.myCount > 0) {
+        rows.add(level, "(self)", null, node.myBucket.myCount, false, false);
+      }
+      if (node.myChildren == null) {
+        return;
+      }
+      // the largest TREE_ROWS children, the others are shown as one row
+      PriorityQueue<Node> top = new PriorityQueue<>(Comparator.comparingLong(n -> n.myCount));
+      long restCount = 0;
+      int rest = 0;
+      for (Node child : node.myChildren.values()) {
+        top.add(child);
+        if (top.size() > TREE_ROWS) {
+          restCount += top.poll().myCount;
+          rest++;
+        }
+      }
+      List<Node> children = new ArrayList<>(top);
+      children.sort((o1, o2) -> -Long.compare(o1.myCount, o2.myCount));
+      for (Node child : children) {
+        boolean expandable = child.myChildren != null && !child.myChildren.isEmpty();
+        String childPath = path + child.myKey;
+        rows.add(level, child.myKey, childPath, child.myCount, expandable, child.myExpanded);
+        if (expandable && child.myExpanded) {
+          addRows(child, childPath, level + 1, rows);
+        }
+      }
+      if (rest > 0) {
+        rows.add(level, "(" + rest + " more)", null, restCount, false, false);
+      }
+    }
+
+    private static long bucketBytes(@NotNull String bucketName) {
+      return ENTRY_BYTES + OBJECT_BYTES * 2 + stringBytes(bucketName);
+    }
+
+    private static long nodeBytes(@NotNull String key) {
+      return ENTRY_BYTES + OBJECT_BYTES * 2 + stringBytes(key);
+    }
+  }
+
+  /**
+   * Prefix of bucket names in a tree hist. Its count is the sum of counts of all buckets with the prefix,
+   * it is updated on every add to a bucket, so nothing is rebuilt when nodes are expanded.
+   */
+  private static final class Node {
+    private final @Nullable Node myParent;
+    // part of bucket names after the parent prefix, starts with a separator unless the parent is the root
+    private final String myKey;
+    private long myCount;
+    // bucket named by the prefix itself, if any
+    private Bucket myBucket;
+    private HashMap<String, Node> myChildren;
+    private boolean myExpanded;
+
+    private Node(@Nullable Node parent, @NotNull String key) {
+      myParent = parent;
+      myKey = key;
+    }
+
+    private void addCount(long count) {
+      for (Node node = this; node != null; node = node.myParent) {
+        node.myCount += count;
+      }
+    }
+  }
+
+  private static final class Bucket {
+    private final Hist myHist;
+    private final String myName;
+    // long, an import can add more than Integer.MAX_VALUE to a bucket
+    private long myCount;
+    private long myLastUpdate;
+    // removed from the hist, handles pointing to it must be resolved again
+    private boolean myRemoved;
+    // in tree hists
+    private Node myNode;
+
+    private Bucket(@NotNull Hist hist, @NotNull String name) {
+      myHist = hist;
+      myName = name;
+    }
+
+    private void add(long count, long now) {
+      myCount += count;
+      myLastUpdate = now;
+      myHist.myTotal += count;
+      myHist.myLastUpdate = now;
+      if (myNode != null) {
+        myNode.addCount(count);
+      }
+      myHist.myUi = null;
+    }
+  }
+
+  /**
+   * Bucket bound to a numeric handle by the 'd' command. Commands with the handle add to the bucket directly,
+   * the bucket is looked up by names only after it was removed (by reset, delete, or eviction).
+   */
+  static final class BucketRef {
+    private final String myHistName;
+    private final String myBucketName;
+    // accessed only by the aggregation thread
+    private Bucket myBucket;
+
+    private BucketRef(@NotNull String histName, @NotNull String bucketName) {
+      myHistName = histName;
+      myBucketName = bucketName;
+    }
+  }
+
+  static final class State {
+    final long myVersion;
+    // sorted by name
+    final List<HistUi> myHists;
+    // sorted by name
+    final List<ChartUi> myCharts;
+    final @Nullable HiUi myHi;
+    final @Nullable RunDiff myRunDiff;
+    final @Nullable String myEvictionNote;
+    // breached watches with their values
+    final List<String> myBreaches;
+    // sorted by name
+    final List<H2Ui> myH2s;
+
+    State(long version,
+          @NotNull List<HistUi> hists,
+          @NotNull List<ChartUi> charts,
+          @Nullable HiUi hi,
+          @Nullable RunDiff runDiff,
+          @Nullable String evictionNote,
+          @NotNull List<String> breaches,
+          @NotNull List<H2Ui> h2s) {
+      myVersion = version;
+      myHists = hists;
+      myCharts = charts;
+      myHi = hi;
+      myRunDiff = runDiff;
+      myEvictionNote = evictionNote;
+      myBreaches = breaches;
+      myH2s = h2s;
+    }
+  }
+
+  static class HistUi {
+    private final String myHistName;
+    private final List<String> myVals;
+    private final long[] myCounts;
+    private final long myTotal;
+    private final int mySamplingRatio;
+    private final double mySamplingError;
+    // visible nodes of a tree hist in display order, null for flat hists
+    private final @Nullable Rows myRows;
+
+    public HistUi(String histName, List<String> vals, long[] counts, long total, int samplingRatio, double samplingError) {
+      myHistName = histName;
+      myVals = vals;
+      myCounts = counts;
+      myTotal = total;
+      mySamplingRatio = samplingRatio;
+      mySamplingError = samplingError;
+      myRows = null;
+    }
+
+    public HistUi(String histName, @NotNull Rows rows, long total, int samplingRatio, double samplingError) {
+      myHistName = histName;
+      myVals = rows.myLabels;
+      myCounts = rows.myCounts.stream().mapToLong(Long::longValue).toArray();
+      myTotal = total;
+      mySamplingRatio = samplingRatio;
+      mySamplingError = samplingError;
+      myRows = rows;
+    }
+
+    boolean isTree() {
+      return myRows != null;
+    }
+
+    // nesting level of the row of a tree hist
+    int getLevel(int i) {
+      return myRows != null ? myRows.myLevels.get(i) : 0;
+    }
+
+    // prefix of bucket names the row of a tree hist stands for, null for rows which are not nodes
+    @Nullable
+    String getPath(int i) {
+      return myRows != null ? myRows.myPaths.get(i) : myVals.get(i);
+    }
+
+    boolean isExpandable(int i) {
+      return myRows != null && myRows.myExpandable.get(i);
+    }
+
+    boolean isExpanded(int i) {
+      return myRows != null && myRows.myExpanded.get(i);
+    }
+
+    static final class Rows {
+      private final List<Integer> myLevels = new ArrayList<>();
+      private final List<String> myLabels = new ArrayList<>();
+      private final List<String> myPaths = new ArrayList<>();
+      private final List<Long> myCounts = new ArrayList<>();
+      private final List<Boolean> myExpandable = new ArrayList<>();
+      private final List<Boolean> myExpanded = new ArrayList<>();
+
+      private void add(int level, @NotNull String label, @Nullable String path, long count, boolean expandable, boolean expanded) {
+        myLevels.add(level);
+        myLabels.add(label);
+        myPaths.add(path);
+        myCounts.add(count);
+        myExpandable.add(expandable);
+        myExpanded.add(expanded);
+      }
+    }
+
+    @NotNull
+    String getHistName() {
+      return myHistName;
+    }
+
+    int getSize() {
+      return myVals.size();
+    }
+
+    String getBucketName(int i) {
+      return myVals.get(i);
+    }
+
+    long getCount(int i) {
+      return myCounts[i];
+    }
+
+    long getTotal() {
+      return myTotal;
+    }
+
+    int getSamplingRatio() {
+      return mySamplingRatio;
+    }
+
+    // relative error of the total caused by sampling, 0 if nothing was sampled since the last reset
+    double getSamplingError() {
+      return mySamplingError;
+    }
+  }
+
+  static class HiUi {
+    final float[] myHist;
+    // values are fixed-point in the base unit, see ValueParser
+    final long myMin;
+    final long myMax;
+    // buckets are log-scaled between myMin and myMax
+    final boolean myLog;
+    final float myMaxPercent;
+    // sorted values in the ring buffer
+    final long[] myValues;
+    final long myLastWriteIdx;
+    final int mySamplingRatio;
+    // base unit of the last value
+    final String myUnit;
+    public HiUi(float[] hist, long[] values, long min, long max, boolean log, float maxPercent, long lastWriteIdx,
+                int samplingRatio, String unit) {
+      myHist = hist;
+      myValues = values;
+      myMin = min;
+      myMax = max;
+      myLog = log;
+      myMaxPercent = maxPercent;
+      myLastWriteIdx = lastWriteIdx;
+      mySamplingRatio = samplingRatio;
+      myUnit = unit;
+    }
+
+    @NotNull
+    String format(long value) {
+      return ValueParser.format(value, myUnit);
+    }
+
+    long percentile(double p) {
+      return myValues[RunSnapshot.percentileIdx(myValues.length, p)];
+    }
+
+    // 0..1 position of the value between myMin and myMax on the value axis
+    double position(long value) {
+      return position(value, myMin, myMax, myLog);
+    }
+
+    // value at the 0..1 position on the value axis
+    long valueAt(double position) {
+      return myLog ? (long) (myMin * Math.pow((double) myMax / myMin, position)) : (long) (myMin + ((double) myMax - myMin) * position);
+    }
+
+    private static double position(long value, long min, long max, boolean log) {
+      return log ? Math.log((double) value / min) / Math.log((double) max / min) : ((double) value - min) / ((double) max - min);
+    }
+  }
+
+  /**
+   * Counts of x/y pairs in a fixed grid of log-sized cells, memory doesn't depend on the number of pairs.
+   * Cell 0 holds values <= 0, then every power of two is split into 2 cells.
+   */
+  private static final class H2 {
+    static final int SIZE = 128;
+    static final long BYTES = 8L * SIZE * SIZE + OBJECT_BYTES * 4;
+
+    private final String myName;
+    // by y * SIZE + x
+    private final long[] myCounts = new long[SIZE * SIZE];
+    private long myTotal;
+    // range of cells with counts
+    private int myMinX = SIZE;
+    private int myMaxX = -1;
+    private int myMinY = SIZE;
+    private int myMaxY = -1;
+    private long myLastUpdate;
+    // ui in the published state, null if the grid changed after publishing
+    private H2Ui myUi;
+
+    private H2(@NotNull String name) {
+      myName = name;
+    }
+
+    private void add(long x, long y, int weight, long now) {
+      int cellX = H2Ui.cell(x);
+      int cellY = H2Ui.cell(y);
+      myCounts[cellY * SIZE + cellX] += weight;
+      myTotal += weight;
+      myMinX = Math.min(myMinX, cellX);
+      myMaxX = Math.max(myMaxX, cellX);
+      myMinY = Math.min(myMinY, cellY);
+      myMaxY = Math.max(myMaxY, cellY);
+      myLastUpdate = now;
+      myUi = null;
+    }
+
+    // copies only the range of cells with counts
+    @NotNull
+    private H2Ui createUi() {
+      int width = myMaxX - myMinX + 1;
+      int height = myMaxY - myMinY + 1;
+      long[] counts = new long[width * height];
+      long max = 0;
+      for (int y = 0; y < height; y++) {
+        System.arraycopy(myCounts, (myMinY + y) * SIZE + myMinX, counts, y * width, width);
+        for (int x = 0; x < width; x++) {
+          max = Math.max(max, counts[y * width + x]);
+        }
+      }
+      return new H2Ui(myName, counts, width, height, myMinX, myMinY, myTotal, max);
+    }
+  }
+
+  static final class H2Ui {
+    final String myName;
+    // by y * myWidth + x, cell (0, 0) is (myMinX, myMinY) of the grid
+    final long[] myCounts;
+    final int myWidth;
+    final int myHeight;
+    final int myMinX;
+    final int myMinY;
+    final long myTotal;
+    final long myMaxCount;
+
+    private H2Ui(@NotNull String name, long @NotNull [] counts, int width, int height, int minX, int minY, long total, long maxCount) {
+      myName = name;
+      myCounts = counts;
+      myWidth = width;
+      myHeight = height;
+      myMinX = minX;
+      myMinY = minY;
+      myTotal = total;
+      myMaxCount = maxCount;
+    }
+
+    static int cell(long value) {
+      if (value <= 0) {
+        return 0;
+      }
+      int log = 63 - Long.numberOfLeadingZeros(value);
+      int half = log == 0 ? 0 : (int) ((value >>> (log - 1)) & 1);
+      return 1 + 2 * log + half;
+    }
+
+    // the smallest value in the cell, the cell after the top one is the upper bound of the grid and saturates at Long.MAX_VALUE
+    static long lowerBound(int cell) {
+      if (cell == 0) {
+        return 0;
+      }
+      int log = (cell - 1) / 2;
+      if (log >= 63) {
+        return Long.MAX_VALUE;
+      }
+      int half = (cell - 1) % 2;
+      return (1L << log) + (log == 0 ? 0 : half * (1L << (log - 1)));
+    }
+  }
+
+  interface Cmd {
+  }
+
+  private static class ClearHistCmd implements Cmd {
+    private final String myHistName;
+
+    public ClearHistCmd(@NotNull String histName) {
+      myHistName = histName;
+    }
+  }
+
+  private static class DeleteCmd implements Cmd {
+    private final String myType;
+    private final String myName;
+
+    public DeleteCmd(@NotNull String type, @NotNull String name) {
+      myType = type;
+      myName = name;
+    }
+  }
+
+  private static class CloseGaugeCmd implements Cmd {
+    private final String myChartName;
+    private final String mySeriesName;
+
+    public CloseGaugeCmd(@NotNull String chartName, @NotNull String seriesName) {
+      myChartName = chartName;
+      mySeriesName = seriesName;
+    }
+  }
+
+  private static class TreeCmd implements Cmd {
+    private final String myHistName;
+    private final String mySeparators;
+
+    public TreeCmd(@NotNull String histName, @NotNull String separators) {
+      myHistName = histName;
+      mySeparators = separators;
+    }
+  }
+
+  private static class ToggleNodeCmd implements Cmd {
+    private final String myHistName;
+    private final String myPath;
+
+    public ToggleNodeCmd(@NotNull String histName, @NotNull String path) {
+      myHistName = histName;
+      myPath = path;
+    }
+  }
+
+  private static class HistCmd implements Cmd {
+    private final String myHistName;
+    private final String myBucketName;
+    private final int myWeight;
+
+    public HistCmd(@NotNull String histName, @NotNull String bucketName, int weight) {
+      myHistName = histName;
+      myBucketName = bucketName;
+      myWeight = weight;
+    }
+  }
+
+  private static class HandleCmd implements Cmd {
+    private final BucketRef myRef;
+    private final int myCount;
+    private final int myWeight;
+
+    public HandleCmd(@NotNull BucketRef ref, int count, int weight) {
+      myRef = ref;
+      myCount = count;
+      myWeight = weight;
+    }
+  }
+
+  private static class ChartCmd implements Cmd {
+    private final String myChartName;
+    private final String mySeriesName;
+    private final int myCount;
+    private final boolean myGauge;
+    private final boolean myDelta;
+    private final int myWeight;
+    private final long myTime;
+
+    public ChartCmd(@NotNull String chartName, @NotNull String seriesName, int count, boolean gauge, boolean delta, int weight,
+                    long time) {
+      myChartName = chartName;
+      mySeriesName = seriesName;
+      myCount = count;
+      myGauge = gauge;
+      myDelta = delta;
+      myWeight = weight;
+      myTime = time;
+    }
+  }
+
+  private static class RunCmd implements Cmd {
+    private final Run myRun;
+    private final boolean myStart;
+
+    public RunCmd(@NotNull Run run, boolean start) {
+      myRun = run;
+      myStart = start;
+    }
+  }
+
+  private static class ImportChartCmd implements Cmd {
+    private final String myChartName;
+    private final int mySecondsPerSample;
+    // not empty, all arrays have the same length
+    private final Map<String, int[]> mySeries;
+
+    public ImportChartCmd(@NotNull String chartName, int secondsPerSample, @NotNull Map<String, int[]> series) {
+      myChartName = chartName;
+      mySecondsPerSample = secondsPerSample;
+      mySeries = series;
+    }
+  }
+
+  private static class WatchesCmd implements Cmd {
+    private final List<Watch> myWatches;
+
+    public WatchesCmd(@NotNull List<Watch> watches) {
+      myWatches = watches;
+    }
+  }
+
+  private static class FlushCmd implements Cmd {
+    private final CountDownLatch myDone = new CountDownLatch(1);
+  }
+
+  private static class H2Cmd implements Cmd {
+    private final String myName;
+    private final long myX;
+    private final long myY;
+    private final int myWeight;
+
+    public H2Cmd(@NotNull String name, long x, long y, int weight) {
+      myName = name;
+      myX = x;
+      myY = y;
+      myWeight = weight;
+    }
+  }
+
+  private static class HiCmd implements Cmd {
+    private final long myValue;
+    private final String myUnit;
+    private final int myWeight;
+
+    public HiCmd(long value, @NotNull String unit, int weight) {
+      myValue = value;
+      myUnit = unit;
+      myWeight = weight;
+    }
+  }
+
+  static class RingBuf {
+    private final long[] data;
+    private final int mask;
+    private long writeIdx = 0;
+
+    public RingBuf(int pow2) {
+      mask = (1 << pow2) - 1;
+      data = new long[1 << pow2];
+    }
+
+    void write(long value) {
+      data[(int)(writeIdx & mask)] = value;
+      writeIdx++;
+    }
+
+    long read(long idx) {
+      return data[(int)(idx & mask)];
+    }
+
+    void copyTo(RingBuf buf) {
+      buf.writeIdx = writeIdx;
+      System.arraycopy(data, 0, buf.data, 0, data.length);
+    }
+
+    void clear() {
+      writeIdx = 0;
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Normalization of bucket names which contain ids, numbers or hashes, parsed from text like
+ * <pre>
+ * 'requests' digits
+ * * hex
+ * 'callers' prefix 40
+ * 'urls' regex '/user/[^/]+' '/user/*'
+ * </pre>
+ * 'digits' replaces every run of digits with '#', 'hex' replaces runs of at least {@link #HEX_RUN} hex digits and '-'
+ * with a digit among them (hashes, uuids) with '#', 'prefix N' keeps the first N chars, 'regex' replaces all matches
+ * of the pattern, the replacement can refer to groups like $1. '*' applies the rule to all hists. Rules of a hist
+ * are applied in their order.
+ *
+ * Rules are applied by {@link CommandParser} before commands reach Sputnik, so a hist gets only normalized buckets.
+ */
+final class BucketRule {
+  static final String ALL = "*";
+  static final int HEX_RUN = 8;
+  // normalized names cached by every source for every hist, a cache is cleared when it's full
+  private static final int MAX_CACHED = 4096;
+
+  final String myText;
+  final String myHistName;
+  final String myKind;
+  final int myLength;
+  final Pattern myPattern;
+  final String myReplacement;
+
+  private BucketRule(@NotNull String text, @NotNull String histName, @NotNull String kind, int length,
+                     Pattern pattern, String replacement) {
+    myText = text;
+    myHistName = histName;
+    myKind = kind;
+    myLength = length;
+    myPattern = pattern;
+    myReplacement = replacement;
+  }
+
+  @NotNull
+  String apply(@NotNull String name) {
+    return switch (myKind) {
+      case "digits" -> replaceRuns(name, false);
+      case "hex" -> replaceRuns(name, true);
+      case "prefix" -> name.length() > myLength ? name.substring(0, myLength) + "..." : name;
+      default -> myPattern.matcher(name).replaceAll(myReplacement);
+    };
+  }
+
+  @NotNull
+  private static String replaceRuns(@NotNull String name, boolean hex) {
+    StringBuilder sb = null;
+    int copied = 0;
+    int i = 0;
+    while (i < name.length()) {
+      int end = i;
+      boolean hasDigit = false;
+      while (end < name.length() && (hex ? isHex(name.charAt(end)) || name.charAt(end) == '-' && end > i : isDigit(name.charAt(end)))) {
+        hasDigit |= isDigit(name.charAt(end));
+        end++;
+      }
+      if (hasDigit && end - i >= (hex ? HEX_RUN : 1)) {
+        if (sb == null) {
+          sb = new StringBuilder(name.length());
+        }
+        sb.append(name, copied, i).append('#');
+        copied = end;
+        i = end;
+      } else {
+        i = Math.max(end, i + 1);
+      }
+    }
+    return sb == null ? name : sb.append(name, copied, name.length()).toString();
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isHex(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  /**
+   * Applies the current rules of Sputnik for a single source of commands, caching normalized names per hist.
+   */
+  static final class Normalizer {
+    private final Aggregator myAggregator;
+    private List<BucketRule> myRules = List.of();
+    // hist name -> its rules and names
+    private final Map<String, Cache> myCaches = new HashMap<>();
+
+    Normalizer(@NotNull Aggregator aggregator) {
+      myAggregator = aggregator;
+    }
+
+    @NotNull
+    String normalize(@NotNull String histName, @NotNull String bucketName) {
+      List<BucketRule> rules = myAggregator.getBucketRules();
+      if (rules != myRules) {
+        myRules = rules;
+        myCaches.clear();
+      }
+      if (rules.isEmpty()) {
+        return bucketName;
+      }
+      Cache cache = myCaches.get(histName);
+      if (cache == null) {
+        if (myCaches.size() == MAX_CACHED) {
+          myCaches.clear();
+        }
+        cache = new Cache(rules, histName);
+        myCaches.put(histName, cache);
+      }
+      return cache.normalize(bucketName);
+    }
+  }
+
+  // rules of one hist with the names they produced
+  private static final class Cache {
+    private final List<BucketRule> myRules;
+    private final Map<String, String> myNormalized = new HashMap<>();
+
+    Cache(@NotNull List<BucketRule> rules, @NotNull String histName) {
+      myRules = new ArrayList<>();
+      for (BucketRule rule : rules) {
+        if (rule.myHistName.equals(ALL) || rule.myHistName.equals(histName)) {
+          myRules.add(rule);
+        }
+      }
+    }
+
+    @NotNull
+    String normalize(@NotNull String name) {
+      if (myRules.isEmpty()) {
+        return name;
+      }
+      String normalized = myNormalized.get(name);
+      if (normalized == null) {
+        normalized = name;
+        for (BucketRule rule : myRules) {
+          normalized = rule.apply(normalized);
+        }
+        if (myNormalized.size() == MAX_CACHED) {
+          myNormalized.clear();
+        }
+        myNormalized.put(name, normalized);
+      }
+      return normalized;
+    }
+  }
+
+  // one rule per line, empty lines are skipped
+  @NotNull
+  static List<BucketRule> parseAll(@NotNull String text) {
+    List<BucketRule> result = new ArrayList<>();
+    for (String line : text.split("\n")) {
+      if (!line.isBlank()) {
+        result.add(parse(line.trim()));
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  static BucketRule parse(@NotNull String text) {
+    List<String> parts = split(text);
+    if (parts.size() < 2) {
+      throw error(text, "expected '<hist>' or * followed by digits, hex, prefix <length> or regex '<pattern>' '<replacement>'");
+    }
+    String histName = parts.get(0);
+    String kind = parts.get(1);
+    int length = 0;
+    Pattern pattern = null;
+    String replacement = null;
+    int expectedParts = 2;
+    switch (kind) {
+      case "digits", "hex" -> {
+      }
+      case "prefix" -> {
+        expectedParts = 3;
+        try {
+          length = parts.size() > 2 ? Integer.parseInt(parts.get(2)) : 0;
+        } catch (NumberFormatException ignored) {
+        }
+        if (length <= 0) {
+          throw error(text, "expected positive length after prefix");
+        }
+      }
+      case "regex" -> {
+        expectedParts = 4;
+        if (parts.size() != 4) {
+          throw error(text, "expected regex '<pattern>' '<replacement>'");
+        }
+        try {
+          pattern = Pattern.compile(parts.get(2));
+        } catch (PatternSyntaxException e) {
+          throw error(text, "invalid pattern: " + e.getDescription());
+        }
+        replacement = parts.get(3);
+        checkReplacement(text, pattern, replacement);
+      }
+      default -> throw error(text, "expected digits, hex, prefix or regex");
+    }
+    if (parts.size() != expectedParts) {
+      throw error(text, "unexpected text after " + kind);
+    }
+    return new BucketRule(text, histName, kind, length, pattern, replacement);
+  }
+
+  // replaceAll throws on the first match for group references like '$' or '$3' with 2 groups, so they are checked here
+  private static void checkReplacement(@NotNull String text, @NotNull Pattern pattern, @NotNull String replacement) {
+    int groups = pattern.matcher("").groupCount();
+    for (int i = 0; i < replacement.length(); i++) {
+      char c = replacement.charAt(i);
+      if (c == '\\') {
+        if (++i == replacement.length()) {
+          throw error(text, "expected a char after \\ in replacement");
+        }
+      } else if (c == '$') {
+        if (i + 1 == replacement.length()) {
+          throw error(text, "expected group number or {name} after $ in replacement, use \\$ for $");
+        }
+        char next = replacement.charAt(i + 1);
+        if (next >= '0' && next <= '9' && next - '0' > groups) {
+          throw error(text, "no group " + (next - '0') + " in pattern, it has " + groups);
+        }
+      }
+    }
+    try {
+      // the same groups with an empty alternative, so there is a match to run the replacement on, it also checks group names
+      Pattern.compile("(?:" + pattern.pattern() + "\n)|", pattern.flags()).matcher("").replaceFirst(replacement);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw error(text, "invalid replacement: " + e.getMessage());
+    }
+  }
+
+  // words and quoted strings, quotes are removed
+  @NotNull
+  private static List<String> split(@NotNull String text) {
+    List<String> result = new ArrayList<>();
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (c == ' ' || c == '\t') {
+        i++;
+      } else if (c == '\'' || c == '"') {
+        int end = text.indexOf(c, i + 1);
+        if (end < 0) {
+          throw error(text, "unclosed quote at " + (i + 1));
+        }
+        result.add(text.substring(i + 1, end));
+        i = end + 1;
+      } else {
+        int end = i;
+        while (end < text.length() && text.charAt(end) != ' ' && text.charAt(end) != '\t') {
+          end++;
+        }
+        result.add(text.substring(i, end));
+        i = end;
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static IllegalArgumentException error(@NotNull String text, @NotNull String message) {
+    return new IllegalArgumentException("'" + text + "': " + message);
+  }
+}
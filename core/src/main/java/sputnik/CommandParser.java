@@ -0,0 +1,316 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Detects commands in lines of text and passes them to Sputnik.
+ *
+ * A parser is created for every source of commands, handles declared with the 'd' command are valid only in
+ * the source which declared them. Bucket names are normalized with the bucket rules of Sputnik, see {@link BucketRule}.
+ *
+ * When Sputnik is overloaded, 'h', 'c', 'Hi', 'H2' and '#' commands are sampled: of every block of N such lines only one line
+ * at a random position in the block is parsed and it stands for N lines. Other commands are never sampled. Positions come
+ * from a fixed seed, so the same text sampled with the same ratios gives the same result, e.g. in {@link SputnikCli}.
+ */
+final class CommandParser {
+  private static final int MAX_HANDLE = 0xFFFF;
+  private static final long SAMPLING_SEED = 0x5EED;
+
+  private final Aggregator myAggregator;
+  private final ValueParser myValueParser = new ValueParser();
+  private final BucketRule.Normalizer myNormalizer;
+  // handle -> bucket
+  private Aggregator.BucketRef[] myHandles = new Aggregator.BucketRef[16];
+  // sampling block: its size, position of the next line in it and position of the line to keep
+  private int myBlockSize = 1;
+  private int myBlockPos = 0;
+  private int myKeepPos = 0;
+  // random, not the first line, so periodic patterns in the text don't bias samples
+  private final Random myRandom = new Random(SAMPLING_SEED);
+
+  CommandParser(@NotNull Aggregator aggregator) {
+    myAggregator = aggregator;
+    myNormalizer = new BucketRule.Normalizer(aggregator);
+  }
+
+  // text is a single line without a line separator
+  void parse(@NotNull String text) {
+    int weight = isSampled(text) ? sample() : 1;
+    if (weight == 0) {
+      return;
+    }
+    //\u0001#7 - add 1 to the bucket bound to handle 7
+    //\u0001#7+12 - add 12 to the bucket bound to handle 7
+    if (text.length() >= 3 && text.charAt(0) == '\u0001' && text.charAt(1) == '#') {
+      parseHandle(text, weight);
+      return;
+    }
+    // command starts with \u0001 and is at least 4 chars long: \u0001c()
+    if (text.startsWith("\u0001") && text.length() >= 4 && text.charAt(text.length() - 1) == ')') {
+      char c1 = text.charAt(1);
+      if (c1 == 'h') {
+        //\u0001h("histName","bucketName") - add 1 to the bucket in given histogram
+        //\u0001hr("histName") - reset the given histogram
+        if (text.charAt(2) == '(') {
+          int idx = 3;
+          String histName = parseString(text, idx);
+          if (histName == null) {
+            return;
+          }
+          idx += histName.length() + 2;
+          if (text.charAt(idx) != ',') {
+            return;
+          }
+          idx++;
+          String bucketName = parseString(text, idx);
+          if (bucketName == null) {
+            return;
+          }
+          idx += bucketName.length() + 2;
+          if (idx != text.length() - 1) {
+            return;
+          }
+          myAggregator.h(histName, myNormalizer.normalize(histName, bucketName), weight);
+        } else if (text.charAt(2) == 'r' && text.charAt(3) == '(') {
+          int idx = 4;
+          String histName = parseString(text, idx);
+          if (histName == null) {
+            return;
+          }
+          idx += histName.length() + 2;
+          if (idx != text.length() - 1) {
+            return;
+          }
+          myAggregator.hr(histName);
+        } else if (text.charAt(2) == 't' && text.charAt(3) == '(') {
+          //\u0001ht("histName","./") - split bucket names of the histogram before '.' and '/' into a tree
+          int idx = 4;
+          String histName = parseString(text, idx);
+          if (histName == null) {
+            return;
+          }
+          idx += histName.length() + 2;
+          if (text.charAt(idx) != ',') {
+            return;
+          }
+          idx++;
+          String separators = parseString(text, idx);
+          if (separators == null) {
+            return;
+          }
+          idx += separators.length() + 2;
+          if (idx != text.length() - 1) {
+            return;
+          }
+          myAggregator.ht(histName, separators);
+        }
+      }
+      if (c1 == 'd' && text.charAt(2) == '(') {
+        //\u0001d(7,"histName","bucketName") - bind the bucket in given histogram to handle 7
+        int idx = 3;
+        int handle = 0;
+        while (idx < text.length() && isDigit(text.charAt(idx)) && handle <= MAX_HANDLE) {
+          handle = handle * 10 + (text.charAt(idx) - '0');
+          idx++;
+        }
+        if (idx == 3 || handle > MAX_HANDLE || text.charAt(idx) != ',') {
+          return;
+        }
+        idx++;
+        String histName = parseString(text, idx);
+        if (histName == null) {
+          return;
+        }
+        idx += histName.length() + 2;
+        if (text.charAt(idx) != ',') {
+          return;
+        }
+        idx++;
+        String bucketName = parseString(text, idx);
+        if (bucketName == null) {
+          return;
+        }
+        idx += bucketName.length() + 2;
+        if (idx != text.length() - 1) {
+          return;
+        }
+        if (handle >= myHandles.length) {
+          myHandles = Arrays.copyOf(myHandles, Math.min(MAX_HANDLE + 1, Math.max(handle + 1, myHandles.length * 2)));
+        }
+        myHandles[handle] = myAggregator.declare(histName, myNormalizer.normalize(histName, bucketName));
+      }
+      if (c1 == 'c') {
+        //\u0001c("chartName","seriesName") - add 1 to the current count of the series in the given chart
+        //\u0001cr - doesn't make sense: char will clear itself in 10 seconds
+        if (text.charAt(2) == '(') {
+          int idx = 3;
+          String chartName = parseString(text, idx);
+          if (chartName == null) {
+            return;
+          }
+          idx += chartName.length() + 2;
+          if (text.charAt(idx) != ',') {
+            return;
+          }
+          idx++;
+          String seriesName = parseString(text, idx);
+          if (seriesName == null) {
+            return;
+          }
+          idx += seriesName.length() + 2;
+          long time = 0;
+          if (text.charAt(idx) == ',') {
+            //\u0001c("chartName","seriesName",1700000000123) - the same with the epoch time when the event happened
+            idx++;
+            int start = idx;
+            while (idx < text.length() && isDigit(text.charAt(idx)) && idx - start < 19) {
+              time = time * 10 + (text.charAt(idx) - '0');
+              idx++;
+            }
+            // 19 digits above Long.MAX_VALUE overflow to negative
+            if (idx == start || time < 0) {
+              return;
+            }
+            time = epochMillis(time);
+          }
+          if (idx != text.length() - 1) {
+            return;
+          }
+          myAggregator.c(chartName, seriesName, 1, weight, time);
+        }
+      }
+      //\u0001H2("name",x,y) - add the pair of integers to the two-dimensional histogram
+      if (c1 == 'H' && text.charAt(2) == '2' && text.charAt(3) == '(') {
+        int idx = 4;
+        String name = parseString(text, idx);
+        if (name == null) {
+          return;
+        }
+        idx += name.length() + 2;
+        int comma = text.indexOf(',', idx + 1);
+        if (text.charAt(idx) != ',' || comma < 0) {
+          return;
+        }
+        try {
+          long x = Long.parseLong(text, idx + 1, comma, 10);
+          long y = Long.parseLong(text, comma + 1, text.length() - 1, 10);
+          myAggregator.H2(name, x, y, weight);
+        }
+        catch (NumberFormatException e) {
+          //ignore
+        }
+      }
+      //\u0001Hi(123), \u0001Hi(12.7ms), \u0001Hi(3.2e6 B/s)
+      if (c1 == 'H' && text.length() > 4 &&
+          text.charAt(2) == 'i' && text.charAt(3) == '(' && text.charAt(text.length() - 1) == ')') {
+        if (myValueParser.parse(text, 4, text.length() - 1)) {
+          myAggregator.HiFixed(myValueParser.myValue, myValueParser.myUnit, weight);
+        }
+      }
+    }
+  }
+
+  // epoch time in seconds, millis, micros or nanos told apart by magnitude (each covers years up to 5138), as millis;
+  // other clocks like System.nanoTime() can't be told apart, their counts end up late or in the future of the chart
+  static long epochMillis(long time) {
+    if (time < 100_000_000_000L) {
+      return time * 1000;
+    } else if (time < 100_000_000_000_000L) {
+      return time;
+    } else if (time < 100_000_000_000_000_000L) {
+      return time / 1000;
+    }
+    return time / 1_000_000;
+  }
+
+  // for sources which parse hist commands themselves
+  @NotNull
+  String normalize(@NotNull String histName, @NotNull String bucketName) {
+    return myNormalizer.normalize(histName, bucketName);
+  }
+
+  // 0 if the next sampled line should be skipped, otherwise the number of lines it stands for
+  int sample() {
+    if (myBlockPos == 0) {
+      myBlockSize = myAggregator.getSamplingRatio();
+      if (myBlockSize == 1) {
+        return 1;
+      }
+      myKeepPos = myRandom.nextInt(myBlockSize);
+    }
+    boolean keep = myBlockPos == myKeepPos;
+    myBlockPos = (myBlockPos + 1) % myBlockSize;
+    return keep ? myBlockSize : 0;
+  }
+
+  private static boolean isSampled(@NotNull String text) {
+    if (text.length() < 3 || text.charAt(0) != '\u0001') {
+      return false;
+    }
+    char c1 = text.charAt(1);
+    return c1 == '#' || c1 == 'H' || ((c1 == 'h' || c1 == 'c') && text.charAt(2) == '(');
+  }
+
+  private void parseHandle(@NotNull String text, int weight) {
+    int length = text.length();
+    int idx = 2;
+    int handle = 0;
+    while (idx < length && isDigit(text.charAt(idx))) {
+      handle = handle * 10 + (text.charAt(idx) - '0');
+      if (handle >= myHandles.length) {
+        return;
+      }
+      idx++;
+    }
+    if (idx == 2) {
+      return;
+    }
+    long count = 1;
+    if (idx < length) {
+      if (text.charAt(idx) != '+' || idx == length - 1) {
+        return;
+      }
+      idx++;
+      count = 0;
+      while (idx < length && isDigit(text.charAt(idx))) {
+        count = count * 10 + (text.charAt(idx) - '0');
+        if (count > Integer.MAX_VALUE) {
+          return;
+        }
+        idx++;
+      }
+      if (idx != length) {
+        return;
+      }
+    }
+    Aggregator.BucketRef ref = myHandles[handle];
+    if (ref != null) {
+      myAggregator.h(ref, (int) count, weight);
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  @Nullable
+  private static String parseString(@NotNull String text, int startOffset) {
+    char quote = text.charAt(startOffset);
+    if (quote != '"' && quote != '\'') {
+      return null;
+    }
+    int i = startOffset + 1;
+    while (i < text.length() && text.charAt(i) != quote) {
+      i++;
+    }
+    if (i < text.length()) {
+      return text.substring(startOffset + 1, i);
+    } else {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Turns instrumentation of running processes on and off from the IDE without recompiling. Programs check a metric before
+ * formatting and printing its commands:
+ * <pre>
+ * if (Control.on("alloc")) System.out.println("\1h('alloc','" + type + "')");
+ * </pre>
+ * or keep a {@link Switch} to skip hashing the name. The check is a single volatile read of a memory-mapped bitmap written by
+ * the IDE, a metric is off when the bit of its name is set, so everything is on until the IDE turns something off. Different
+ * names can share a bit, then turning off one of them turns off the other too.
+ *
+ * The bitmap is the file in the 'sputnik.control' system property, by default 'sputnik-control' in the temp directory.
+ * When the file cannot be mapped everything stays on.
+ */
+public final class Control {
+  static final int BITS = 1 << 16;
+  static final int BYTES = BITS / 8;
+  private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final ByteBuffer BITMAP = mapOrEmpty();
+
+  private Control() {
+  }
+
+  public static boolean on(@NotNull String name) {
+    int bit = bit(name);
+    return ((long) WORDS.getVolatile(BITMAP, (bit >>> 6) << 3) & (1L << bit)) == 0;
+  }
+
+  @NotNull
+  public static Switch control(@NotNull String name) {
+    return new Switch(bit(name));
+  }
+
+  public static final class Switch {
+    private final int myOffset;
+    private final long myMask;
+
+    private Switch(int bit) {
+      myOffset = (bit >>> 6) << 3;
+      myMask = 1L << bit;
+    }
+
+    public boolean on() {
+      return ((long) WORDS.getVolatile(BITMAP, myOffset) & myMask) == 0;
+    }
+  }
+
+  static int bit(@NotNull String name) {
+    int h = name.hashCode();
+    return (h ^ (h >>> 16)) & (BITS - 1);
+  }
+
+  @NotNull
+  static Path path() {
+    String path = System.getProperty("sputnik.control");
+    return path != null ? Path.of(path) : Path.of(System.getProperty("java.io.tmpdir"), "sputnik-control");
+  }
+
+  @NotNull
+  private static ByteBuffer mapOrEmpty() {
+    try {
+      return map(path());
+    } catch (IOException | RuntimeException e) {
+      return ByteBuffer.allocateDirect(BYTES);
+    }
+  }
+
+  // creates the file if needed, so processes started before the IDE turns anything off see later changes
+  @NotNull
+  static ByteBuffer map(@NotNull Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (channel.size() < BYTES) {
+        channel.write(ByteBuffer.allocate(1), BYTES - 1);
+      }
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, BYTES);
+    }
+  }
+
+  /**
+   * Writes the bitmap for the IDE, every write replaces the whole set of metrics which are off.
+   */
+  static final class Writer {
+    private final ByteBuffer myBitmap;
+
+    Writer(@NotNull Path path) throws IOException {
+      myBitmap = map(path);
+    }
+
+    synchronized void write(@NotNull Collection<String> off) {
+      long[] words = new long[BYTES / 8];
+      for (String name : off) {
+        int bit = bit(name);
+        words[bit >>> 6] |= 1L << bit;
+      }
+      for (int i = 0; i < words.length; i++) {
+        if ((long) WORDS.getVolatile(myBitmap, i << 3) != words[i]) {
+          WORDS.setVolatile(myBitmap, i << 3, words[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package sputnik;
+
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Streams events of a JFR recording into Sputnik following mappings, one per line:
+ * <pre>
+ * hist  jdk.ObjectAllocationSample objectClass weight/1024
+ * hi    jdk.ThreadPark duration
+ * chart jdk.GCPhasePause name duration
+ * </pre>
+ * 'hist' adds the value of the last field (or 1) to the bucket named by the value of the key field in the hist
+ * named by the event type, 'hi' adds the value of the field to the integer histogram, 'chart' adds the value of the
+ * last field (or 1) to the series named by the key field ('-' for a single series) in the second of the event start.
+ * Durations are in microseconds, '/N' divides the value.
+ *
+ * Events are read one by one and aggregated by the importer, Sputnik gets only the aggregated counts,
+ * a uniform sample of the Hi values and the per second chart values, so recordings of any size can be imported.
+ */
+final class JfrImporter {
+  private static final int PROGRESS_EVENTS = 100_000;
+  // hist counts are passed to Sputnik every this many events, so hists grow while the recording is read
+  private static final int FLUSH_EVENTS = 1_000_000;
+  // longer charts are shown with more seconds per point
+  private static final int MAX_CHART_POINTS = 600;
+
+  interface Progress {
+    // may throw an unchecked exception to cancel the import
+    void eventsRead(long events);
+  }
+
+  static final class Mapping {
+    final String myTarget;
+    final String myEventType;
+    final String myKeyField;
+    final @Nullable String myValueField;
+    final long myDivisor;
+
+    private Mapping(@NotNull String target, @NotNull String eventType, @NotNull String keyField,
+                    @Nullable String valueField, long divisor) {
+      myTarget = target;
+      myEventType = eventType;
+      myKeyField = keyField;
+      myValueField = valueField;
+      myDivisor = divisor;
+    }
+
+    // empty lines and lines starting with # are skipped
+    @NotNull
+    static List<Mapping> parseAll(@NotNull String text) {
+      List<Mapping> result = new ArrayList<>();
+      for (String line : text.split("\n")) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          result.add(parse(line));
+        }
+      }
+      return result;
+    }
+
+    @NotNull
+    static Mapping parse(@NotNull String line) {
+      String[] parts = line.trim().split("\\s+");
+      String target = parts[0];
+      boolean hi = target.equals("hi");
+      if (!hi && !target.equals("hist") && !target.equals("chart")) {
+        throw new IllegalArgumentException("'" + line + "': expected hist, hi or chart");
+      }
+      if (parts.length < 3 || parts.length > (hi ? 3 : 4)) {
+        throw new IllegalArgumentException("'" + line + "': expected " +
+                                           (hi ? "hi <event type> <field>" : target + " <event type> <key field> [<value field>]"));
+      }
+      String valueField = hi ? parts[2] : parts.length == 4 ? parts[3] : null;
+      long divisor = 1;
+      if (valueField != null && valueField.contains("/")) {
+        int slash = valueField.indexOf('/');
+        try {
+          divisor = Long.parseLong(valueField.substring(slash + 1));
+        } catch (NumberFormatException e) {
+          divisor = 0;
+        }
+        if (divisor <= 0) {
+          throw new IllegalArgumentException("'" + line + "': expected positive divisor after '/'");
+        }
+        valueField = valueField.substring(0, slash);
+      }
+      return new Mapping(target, parts[1], hi ? "" : parts[2], valueField, divisor);
+    }
+  }
+
+  private final Aggregator myAggregator;
+  // event type -> its mappings
+  private final Map<String, List<Mapping>> myMappings = new HashMap<>();
+  // hist name -> (bucket name -> count since the last flush)
+  private final Map<String, Map<String, Long>> myHistCounts = new HashMap<>();
+  private final Map<String, Map<String, Aggregator.BucketRef>> myRefs = new HashMap<>();
+  private final BucketRule.Normalizer myNormalizer;
+  // uniform sample of all Hi values, as many as Sputnik keeps
+  private final long[] myHiValues = new long[1 << Aggregator.HI_CAPACITY_BITS];
+  private long myHiSeen = 0;
+  private String myHiUnit = "";
+  // chart name -> (series -> (epoch second -> value))
+  private final Map<String, Map<String, Map<Long, Long>>> myCharts = new HashMap<>();
+
+  JfrImporter(@NotNull Aggregator aggregator, @NotNull List<Mapping> mappings) {
+    myAggregator = aggregator;
+    myNormalizer = new BucketRule.Normalizer(aggregator);
+    for (Mapping mapping : mappings) {
+      myMappings.computeIfAbsent(mapping.myEventType, k -> new ArrayList<>()).add(mapping);
+    }
+  }
+
+  void run(@NotNull Path path, @NotNull Progress progress) throws IOException, InterruptedException {
+    long events = 0;
+    try (RecordingFile file = new RecordingFile(path)) {
+      while (file.hasMoreEvents()) {
+        RecordedEvent event = file.readEvent();
+        List<Mapping> mappings = myMappings.get(event.getEventType().getName());
+        if (mappings != null) {
+          for (Mapping mapping : mappings) {
+            add(mapping, event);
+          }
+        }
+        events++;
+        if (events % PROGRESS_EVENTS == 0) {
+          progress.eventsRead(events);
+        }
+        if (events % FLUSH_EVENTS == 0) {
+          flushHists();
+        }
+      }
+    }
+    progress.eventsRead(events);
+    flushHists();
+    flushHi();
+    flushCharts();
+  }
+
+  private void add(@NotNull Mapping mapping, @NotNull RecordedEvent event) {
+    if ((!mapping.myKeyField.isEmpty() && !mapping.myKeyField.equals("-") && !event.hasField(mapping.myKeyField)) ||
+        (mapping.myValueField != null && !event.hasField(mapping.myValueField))) {
+      return;
+    }
+    long value = 1;
+    if (mapping.myValueField != null) {
+      Long number = number(value(event, mapping.myValueField));
+      if (number == null) {
+        return;
+      }
+      value = number / mapping.myDivisor;
+    }
+    switch (mapping.myTarget) {
+      case "hist" -> myHistCounts.computeIfAbsent(mapping.myEventType, k -> new HashMap<>())
+              .merge(myNormalizer.normalize(mapping.myEventType, key(event.getValue(mapping.myKeyField))), value, Long::sum);
+      case "hi" -> {
+        // fixed-point, durations keep their nanoseconds
+        Object raw = value(event, mapping.myValueField);
+        long fixed = raw instanceof Duration ? ((Duration) raw).toNanos() / mapping.myDivisor : value * ValueParser.SCALE;
+        myHiUnit = raw instanceof Duration ? ValueParser.TIME : "";
+        // reservoir sampling
+        if (myHiSeen < myHiValues.length) {
+          myHiValues[(int) myHiSeen] = fixed;
+        } else {
+          long idx = ThreadLocalRandom.current().nextLong(myHiSeen + 1);
+          if (idx < myHiValues.length) {
+            myHiValues[(int) idx] = fixed;
+          }
+        }
+        myHiSeen++;
+      }
+      default -> {
+        String series = mapping.myKeyField.equals("-") ? "count" : key(event.getValue(mapping.myKeyField));
+        myCharts.computeIfAbsent(mapping.myEventType, k -> new HashMap<>())
+                .computeIfAbsent(series, k -> new HashMap<>())
+                .merge(event.getStartTime().getEpochSecond(), value, Long::sum);
+      }
+    }
+  }
+
+  private void flushHists() throws InterruptedException {
+    for (Map.Entry<String, Map<String, Long>> hist : myHistCounts.entrySet()) {
+      Map<String, Aggregator.BucketRef> refs = myRefs.computeIfAbsent(hist.getKey(), k -> new HashMap<>());
+      for (Map.Entry<String, Long> bucket : hist.getValue().entrySet()) {
+        Aggregator.BucketRef ref = refs.computeIfAbsent(bucket.getKey(), k -> myAggregator.declare(hist.getKey(), k));
+        myAggregator.importCount(ref, bucket.getValue());
+      }
+    }
+    myHistCounts.clear();
+  }
+
+  private void flushHi() throws InterruptedException {
+    for (int i = 0; i < Math.min(myHiSeen, myHiValues.length); i++) {
+      myAggregator.importHi(myHiValues[i], myHiUnit);
+    }
+  }
+
+  private void flushCharts() throws InterruptedException {
+    for (Map.Entry<String, Map<String, Map<Long, Long>>> chart : myCharts.entrySet()) {
+      long first = Long.MAX_VALUE;
+      long last = Long.MIN_VALUE;
+      for (Map<Long, Long> seconds : chart.getValue().values()) {
+        for (long second : seconds.keySet()) {
+          first = Math.min(first, second);
+          last = Math.max(last, second);
+        }
+      }
+      long duration = last - first + 1;
+      int secondsPerPoint = (int) ((duration + MAX_CHART_POINTS - 1) / MAX_CHART_POINTS);
+      int points = (int) Math.max(2, (duration + secondsPerPoint - 1) / secondsPerPoint);
+      Map<String, int[]> series = new TreeMap<>();
+      for (Map.Entry<String, Map<Long, Long>> kv : chart.getValue().entrySet()) {
+        long[] values = new long[points];
+        for (Map.Entry<Long, Long> second : kv.getValue().entrySet()) {
+          values[(int) ((second.getKey() - first) / secondsPerPoint)] += second.getValue();
+        }
+        int[] counts = new int[points];
+        for (int i = 0; i < points; i++) {
+          counts[i] = (int) Math.min(Integer.MAX_VALUE, values[i]);
+        }
+        series.put(kv.getKey(), counts);
+      }
+      myAggregator.importChart(chart.getKey(), secondsPerPoint, series);
+    }
+  }
+
+  // getValue() returns raw longs for timespans and timestamps, the getters convert them from their unit
+  @Nullable
+  private static Object value(@NotNull RecordedEvent event, @NotNull String field) {
+    for (ValueDescriptor descriptor : event.getFields()) {
+      if (descriptor.getName().equals(field)) {
+        if ("jdk.jfr.Timespan".equals(descriptor.getContentType())) {
+          return event.getDuration(field);
+        }
+        if ("jdk.jfr.Timestamp".equals(descriptor.getContentType())) {
+          return event.getInstant(field);
+        }
+        break;
+      }
+    }
+    return event.getValue(field);
+  }
+
+  @NotNull
+  private static String key(@Nullable Object value) {
+    if (value instanceof RecordedClass) {
+      return ((RecordedClass) value).getName();
+    }
+    if (value instanceof RecordedThread) {
+      RecordedThread thread = (RecordedThread) value;
+      return thread.getJavaName() != null ? thread.getJavaName() : String.valueOf(thread.getOSName());
+    }
+    if (value instanceof RecordedMethod) {
+      RecordedMethod method = (RecordedMethod) value;
+      return method.getType().getName() + "." + method.getName();
+    }
+    return String.valueOf(value);
+  }
+
+  @Nullable
+  private static Long number(@Nullable Object value) {
+    if (value instanceof Duration) {
+      return ((Duration) value).toNanos() / 1000;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    if (value instanceof Instant) {
+      return ((Instant) value).toEpochMilli();
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value ? 1L : 0L;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,191 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Difference between two runs of the same run configuration.
+ *
+ * Significance hints are cheap approximations, not proper tests: bucket shares use a two-proportion z-test,
+ * chart rates a z-test for two poisson rates, percentiles check that distribution-free confidence intervals
+ * of the order statistic don't overlap, and the shift of Hi distributions uses the Kolmogorov-Smirnov statistic.
+ */
+final class RunDiff {
+  // higher than usual since we test every bucket and every series
+  private static final double Z_MULTIPLE = 2.576;
+  private static final double Z_CI = 1.96;
+  private static final double KS_ALPHA_05 = 1.358;
+  static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+  final String myRunName;
+  final RunSnapshot myBefore;
+  final RunSnapshot myAfter;
+  final List<HistDiff> myHists = new ArrayList<>();
+  final List<SeriesDiff> mySeries = new ArrayList<>();
+  final @Nullable HiDiff myHi;
+
+  RunDiff(@NotNull RunSnapshot before, @NotNull RunSnapshot after) {
+    myRunName = after.myRunName;
+    myBefore = before;
+    myAfter = after;
+
+    TreeSet<String> histNames = new TreeSet<>(before.myHists.keySet());
+    histNames.addAll(after.myHists.keySet());
+    for (String histName : histNames) {
+      myHists.add(new HistDiff(histName,
+              before.myHists.getOrDefault(histName, Collections.emptyMap()),
+              after.myHists.getOrDefault(histName, Collections.emptyMap())));
+    }
+
+    TreeSet<String> chartNames = new TreeSet<>(before.myCharts.keySet());
+    chartNames.addAll(after.myCharts.keySet());
+    for (String chartName : chartNames) {
+      Map<String, Long> seriesBefore = before.myCharts.getOrDefault(chartName, Collections.emptyMap());
+      Map<String, Long> seriesAfter = after.myCharts.getOrDefault(chartName, Collections.emptyMap());
+      TreeSet<String> seriesNames = new TreeSet<>(seriesBefore.keySet());
+      seriesNames.addAll(seriesAfter.keySet());
+      for (String seriesName : seriesNames) {
+        mySeries.add(new SeriesDiff(chartName, seriesName,
+                seriesBefore.getOrDefault(seriesName, 0L), before.getDurationSeconds(),
+                seriesAfter.getOrDefault(seriesName, 0L), after.getDurationSeconds()));
+      }
+    }
+
+    if (before.myHiValues.length > 0 && after.myHiValues.length > 0) {
+      myHi = new HiDiff(before.myHiValues, after.myHiValues, after.myHiUnit);
+    } else {
+      myHi = null;
+    }
+  }
+
+  static final class BucketDiff {
+    final String myName;
+    final long myBefore;
+    final long myAfter;
+    final double myShareBefore;
+    final double myShareAfter;
+    final boolean mySignificant;
+
+    BucketDiff(@NotNull String name, long before, long totalBefore, long after, long totalAfter) {
+      myName = name;
+      myBefore = before;
+      myAfter = after;
+      myShareBefore = totalBefore > 0 ? (double) before / totalBefore : 0;
+      myShareAfter = totalAfter > 0 ? (double) after / totalAfter : 0;
+      if (totalBefore > 0 && totalAfter > 0) {
+        double pooled = (double) (before + after) / (totalBefore + totalAfter);
+        double se = Math.sqrt(pooled * (1 - pooled) * (1.0 / totalBefore + 1.0 / totalAfter));
+        mySignificant = se > 0 && Math.abs(myShareAfter - myShareBefore) / se > Z_MULTIPLE;
+      } else {
+        mySignificant = false;
+      }
+    }
+  }
+
+  static final class HistDiff {
+    final String myName;
+    final long myTotalBefore;
+    final long myTotalAfter;
+    // total variation distance between bucket shares, 0..1
+    final double myShift;
+    final boolean mySignificant;
+    // sorted by the absolute change of the share
+    final List<BucketDiff> myBuckets = new ArrayList<>();
+
+    HistDiff(@NotNull String name, @NotNull Map<String, Long> before, @NotNull Map<String, Long> after) {
+      myName = name;
+      myTotalBefore = sum(before);
+      myTotalAfter = sum(after);
+      Set<String> bucketNames = new HashSet<>(before.keySet());
+      bucketNames.addAll(after.keySet());
+      double shift = 0;
+      boolean significant = false;
+      for (String bucketName : bucketNames) {
+        BucketDiff bucket = new BucketDiff(bucketName,
+                before.getOrDefault(bucketName, 0L), myTotalBefore,
+                after.getOrDefault(bucketName, 0L), myTotalAfter);
+        shift += Math.abs(bucket.myShareAfter - bucket.myShareBefore);
+        significant |= bucket.mySignificant;
+        myBuckets.add(bucket);
+      }
+      myShift = shift / 2;
+      mySignificant = significant;
+      myBuckets.sort(Comparator.comparingDouble((BucketDiff b) -> -Math.abs(b.myShareAfter - b.myShareBefore))
+              .thenComparing(b -> b.myName));
+    }
+
+    private static long sum(@NotNull Map<String, Long> buckets) {
+      long result = 0;
+      for (long count : buckets.values()) {
+        result += count;
+      }
+      return result;
+    }
+  }
+
+  static final class SeriesDiff {
+    final String myChartName;
+    final String mySeriesName;
+    // events per second
+    final double myRateBefore;
+    final double myRateAfter;
+    final boolean mySignificant;
+
+    SeriesDiff(@NotNull String chartName, @NotNull String seriesName,
+               long before, double secondsBefore, long after, double secondsAfter) {
+      myChartName = chartName;
+      mySeriesName = seriesName;
+      myRateBefore = before / secondsBefore;
+      myRateAfter = after / secondsAfter;
+      double se = Math.sqrt(before / (secondsBefore * secondsBefore) + after / (secondsAfter * secondsAfter));
+      mySignificant = se > 0 && Math.abs(myRateAfter - myRateBefore) / se > Z_MULTIPLE;
+    }
+  }
+
+  static final class HiDiff {
+    final int mySizeBefore;
+    final int mySizeAfter;
+    final long[] myBefore = new long[PERCENTILES.length];
+    final long[] myAfter = new long[PERCENTILES.length];
+    final boolean[] mySignificant = new boolean[PERCENTILES.length];
+    // Kolmogorov-Smirnov statistic: max distance between cumulative distributions, 0..1
+    final double myShift;
+    final boolean myShiftSignificant;
+    final String myUnit;
+
+    HiDiff(long @NotNull [] before, long @NotNull [] after, @NotNull String unit) {
+      myUnit = unit;
+      mySizeBefore = before.length;
+      mySizeAfter = after.length;
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        double p = PERCENTILES[i];
+        myBefore[i] = before[RunSnapshot.percentileIdx(before.length, p)];
+        myAfter[i] = after[RunSnapshot.percentileIdx(after.length, p)];
+        mySignificant[i] = before[ciIdx(before.length, p, 1)] < after[ciIdx(after.length, p, -1)] ||
+                           after[ciIdx(after.length, p, 1)] < before[ciIdx(before.length, p, -1)];
+      }
+
+      double d = 0;
+      int i = 0;
+      int j = 0;
+      while (i < before.length && j < after.length) {
+        long v = Math.min(before[i], after[j]);
+        while (i < before.length && before[i] == v) i++;
+        while (j < after.length && after[j] == v) j++;
+        d = Math.max(d, Math.abs((double) i / before.length - (double) j / after.length));
+      }
+      myShift = d;
+      double n = before.length;
+      double m = after.length;
+      myShiftSignificant = d > KS_ALPHA_05 * Math.sqrt((n + m) / (n * m));
+    }
+
+    // index of the upper (sign = 1) or lower (sign = -1) bound of the confidence interval for the percentile
+    private static int ciIdx(int size, double p, int sign) {
+      double idx = size * p + sign * Z_CI * Math.sqrt(size * p * (1 - p));
+      return Math.min(size - 1, Math.max(0, (int) (sign > 0 ? Math.ceil(idx) : Math.floor(idx))));
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable data collected during one run of a run configuration: bucket counts, chart series counts
+ * and integer histogram values which arrived between the process start and its termination.
+ */
+final class RunSnapshot {
+  final String myRunName;
+  final long myStartMillis;
+  final long myEndMillis;
+  // hist name -> (bucket name -> hit count during the run)
+  final Map<String, Map<String, Long>> myHists;
+  // chart name -> (series -> count during the run)
+  final Map<String, Map<String, Long>> myCharts;
+  // sorted Hi values of the run, fixed-point in the base unit
+  final long[] myHiValues;
+  final String myHiUnit;
+  // approximate size in memory
+  final long myBytes;
+
+  RunSnapshot(@NotNull String runName,
+              long startMillis,
+              long endMillis,
+              @NotNull Map<String, Map<String, Long>> hists,
+              @NotNull Map<String, Map<String, Long>> charts,
+              long @NotNull [] hiValues,
+              @NotNull String hiUnit) {
+    myRunName = runName;
+    myStartMillis = startMillis;
+    myEndMillis = endMillis;
+    myHists = Collections.unmodifiableMap(hists);
+    myCharts = Collections.unmodifiableMap(charts);
+    myHiValues = hiValues;
+    myHiUnit = hiUnit;
+
+    long bytes = Aggregator.OBJECT_BYTES * 4 + Aggregator.stringBytes(runName) + 8L * hiValues.length;
+    for (Map.Entry<String, Map<String, Long>> kv : hists.entrySet()) {
+      bytes += Aggregator.ENTRY_BYTES + Aggregator.OBJECT_BYTES * 4 + Aggregator.stringBytes(kv.getKey());
+      for (String bucketName : kv.getValue().keySet()) {
+        bytes += Aggregator.ENTRY_BYTES + Aggregator.OBJECT_BYTES + Aggregator.stringBytes(bucketName);
+      }
+    }
+    for (Map.Entry<String, Map<String, Long>> kv : charts.entrySet()) {
+      bytes += Aggregator.ENTRY_BYTES + Aggregator.OBJECT_BYTES * 4 + Aggregator.stringBytes(kv.getKey());
+      for (String seriesName : kv.getValue().keySet()) {
+        bytes += Aggregator.ENTRY_BYTES + Aggregator.OBJECT_BYTES + Aggregator.stringBytes(seriesName);
+      }
+    }
+    myBytes = bytes;
+  }
+
+  double getDurationSeconds() {
+    return Math.max(1, myEndMillis - myStartMillis) / 1000.0;
+  }
+
+  static int percentileIdx(int size, double p) {
+    return Math.min(size - 1, Math.max(0, (int) Math.ceil(p * size) - 1));
+  }
+}
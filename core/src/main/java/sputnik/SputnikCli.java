@@ -0,0 +1,180 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless Sputnik for CI: reads output of a process from stdin, passes lines which are not commands to stdout unchanged
+ * and prints summaries of the collected data to stderr, or writes them to a file.
+ *
+ * <pre>my-benchmark | java -jar sputnik-core.jar --interval 10 --format json --out sputnik.json</pre>
+ */
+public final class SputnikCli {
+  private static final String USAGE =
+    "Usage: java -jar sputnik-core.jar [--interval <seconds>] [--format text|json] [--out <file>] [--memory-budget-mb <mb>]\n" +
+    "                                  [--watch <watch>]... [--bucket-rule <rule>]...\n" +
+    "  --interval          print a summary every given number of seconds, 0 prints only the final summary (default)\n" +
+    "  --format            summary format, text (default) or json\n" +
+    "  --out               write summaries to the file instead of stderr, every summary replaces the previous one\n" +
+    "  --memory-budget-mb  approximate memory budget of the collected data (default 64)\n" +
+    "  --watch             print a line to stderr when the watch is breached, e.g. \"Hi(p99) > 5ms\",\n" +
+    "                      \"share('alloc','Foo') > 20%\" or \"rate('requests','ok') < 1 for 3s\"\n" +
+    "  --bucket-rule       normalize bucket names before counting, e.g. \"'requests' digits\", \"* hex\",\n" +
+    "                      \"'callers' prefix 40\" or \"'urls' regex '/user/[^/]+' '/user/*'\"\n";
+  private static final int BUF_SIZE = 64 * 1024;
+  // command lines longer than this are dropped
+  private static final int MAX_COMMAND_LENGTH = 1024 * 1024;
+
+  private final Aggregator myAggregator;
+  private final boolean myJson;
+  private final @Nullable Path myOut;
+
+  private SputnikCli(@NotNull Aggregator aggregator, boolean json, @Nullable Path out) {
+    myAggregator = aggregator;
+    myJson = json;
+    myOut = out;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long interval = 0;
+    boolean json = false;
+    Path out = null;
+    List<Watch> watches = new ArrayList<>();
+    List<BucketRule> bucketRules = new ArrayList<>();
+    Aggregator aggregator = new Aggregator() {
+      @Override
+      void watchBreached(@NotNull Watch watch, double value) {
+        System.err.println("Sputnik watch breached: " + watch.myText + ", was " + watch.format(value));
+      }
+    };
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (arg.equals("--help") || arg.equals("-h")) {
+          System.out.print(USAGE);
+          return;
+        }
+        if (i + 1 == args.length) {
+          throw new IllegalArgumentException("Missing value of " + arg);
+        }
+        String value = args[++i];
+        switch (arg) {
+          case "--interval" -> interval = Long.parseLong(value);
+          case "--format" -> {
+            if (!value.equals("text") && !value.equals("json")) {
+              throw new IllegalArgumentException("Unknown format " + value);
+            }
+            json = value.equals("json");
+          }
+          case "--out" -> out = Path.of(value);
+          case "--memory-budget-mb" -> aggregator.setMemoryBudgetMb(Integer.parseInt(value));
+          case "--watch" -> watches.add(Watch.parse(value));
+          case "--bucket-rule" -> bucketRules.add(BucketRule.parse(value));
+          default -> throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+    }
+
+    SputnikCli cli = new SputnikCli(aggregator, json, out);
+    aggregator.setWatches(watches);
+    aggregator.setBucketRules(bucketRules);
+    aggregator.start();
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Sputnik summary");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (interval > 0) {
+      timer.scheduleWithFixedDelay(cli::printSummary, interval, interval, TimeUnit.SECONDS);
+    }
+    cli.pipe(System.in, new FileOutputStream(FileDescriptor.out));
+    aggregator.flush();
+    timer.shutdownNow();
+    cli.printSummary();
+    aggregator.stop();
+  }
+
+  // passes lines which don't start with \u0001 to out as they are and parses the other lines as commands
+  private void pipe(@NotNull InputStream in, @NotNull OutputStream out) throws IOException {
+    CommandParser parser = new CommandParser(myAggregator);
+    ByteArrayOutputStream command = new ByteArrayOutputStream();
+    byte[] buf = new byte[BUF_SIZE];
+    boolean lineStart = true;
+    boolean inCommand = false;
+    int read;
+    while ((read = in.read(buf)) >= 0) {
+      int start = 0;
+      for (int i = 0; i < read; i++) {
+        if (lineStart) {
+          inCommand = buf[i] == 1;
+          lineStart = false;
+        }
+        if (buf[i] == '\n') {
+          if (inCommand) {
+            write(command, buf, start, i - start);
+            parse(parser, command);
+          } else {
+            out.write(buf, start, i + 1 - start);
+          }
+          start = i + 1;
+          lineStart = true;
+        }
+      }
+      if (inCommand) {
+        write(command, buf, start, read - start);
+      } else {
+        out.write(buf, start, read - start);
+      }
+      if (in.available() == 0) {
+        out.flush();
+      }
+    }
+    if (inCommand) {
+      parse(parser, command);
+    }
+    out.flush();
+  }
+
+  private static void write(@NotNull ByteArrayOutputStream command, byte @NotNull [] buf, int start, int length) {
+    if (command.size() + length <= MAX_COMMAND_LENGTH) {
+      command.write(buf, start, length);
+    } else {
+      command.reset();
+      command.write(0); // not a command anymore, the rest of the line is dropped
+    }
+  }
+
+  private static void parse(@NotNull CommandParser parser, @NotNull ByteArrayOutputStream command) {
+    parser.parse(command.toString(StandardCharsets.UTF_8).stripTrailing());
+    command.reset();
+  }
+
+  private synchronized void printSummary() {
+    Aggregator.State state = myAggregator.getState();
+    String summary = myJson ? Summary.json(state) : Summary.text(state);
+    if (myOut == null) {
+      System.err.print(summary);
+      System.err.flush();
+      return;
+    }
+    try {
+      Files.writeString(myOut, summary, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      System.err.println("Cannot write " + myOut + ": " + e.getMessage());
+    }
+  }
+}
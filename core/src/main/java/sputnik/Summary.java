@@ -0,0 +1,180 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Text and JSON summaries of a published state, used by {@link SputnikCli}.
+ */
+final class Summary {
+  // text summary lists only the largest buckets of every hist
+  private static final int TEXT_BUCKETS = 20;
+
+  private Summary() {
+  }
+
+  @NotNull
+  static String text(@NotNull Aggregator.State state) {
+    StringBuilder sb = new StringBuilder();
+    if (state.myEvictionNote != null) {
+      sb.append(state.myEvictionNote).append('\n');
+    }
+    for (String breach : state.myBreaches) {
+      sb.append("breached: ").append(breach).append('\n');
+    }
+    for (Aggregator.HistUi hist : state.myHists) {
+      sb.append("hist ").append(hist.getHistName()).append(", total: ").append(hist.getTotal());
+      if (hist.getSamplingError() > 0 || hist.getSamplingRatio() > 1) {
+        sb.append(String.format(", sampled 1/%d, +-%.1f%%", hist.getSamplingRatio(), 100 * hist.getSamplingError()));
+      }
+      sb.append('\n');
+      int shown = Math.min(TEXT_BUCKETS, hist.getSize());
+      for (int i = 0; i < shown; i++) {
+        long count = hist.getCount(i);
+        sb.append("  ".repeat(hist.getLevel(i) + 1)).append(hist.getBucketName(i)).append(' ').append(count)
+          .append(String.format(" (%.1f%%)", 100.0 * count / hist.getTotal())).append('\n');
+      }
+      if (hist.getSize() > shown) {
+        sb.append("  and ").append(hist.getSize() - shown).append(" more buckets\n");
+      }
+    }
+    for (Aggregator.ChartUi chart : state.myCharts) {
+      sb.append("chart ").append(chart.name);
+      if (chart.lateCounts > 0) {
+        sb.append(", ").append(chart.lateCounts).append(" counted late");
+      }
+      if (chart.futureCounts > 0) {
+        sb.append(", ").append(chart.futureCounts).append(" with times in the future");
+      }
+      sb.append('\n');
+      for (Aggregator.SeriesUi series : chart.series.values()) {
+        sb.append("  ").append(series.name);
+        if (series.gauge) {
+          sb.append(": gauge, last ").append(series.last).append(", max ").append(series.max).append('\n');
+        } else {
+          sb.append(": total ").append(series.total).append(", max ").append(series.max).append("/s, last ")
+            .append(series.last).append("/s\n");
+        }
+      }
+    }
+    for (Aggregator.H2Ui h2 : state.myH2s) {
+      sb.append("H2 ").append(h2.myName).append(", total: ").append(h2.myTotal)
+        .append(", x ").append(Aggregator.H2Ui.lowerBound(h2.myMinX)).append("..").append(Aggregator.H2Ui.lowerBound(h2.myMinX + h2.myWidth))
+        .append(", y ").append(Aggregator.H2Ui.lowerBound(h2.myMinY)).append("..").append(Aggregator.H2Ui.lowerBound(h2.myMinY + h2.myHeight))
+        .append('\n');
+    }
+    Aggregator.HiUi hi = state.myHi;
+    if (hi != null && hi.myValues.length > 0) {
+      sb.append("Hi, last ").append(hi.myValues.length).append(" values: min ").append(hi.format(hi.myValues[0]));
+      for (double p : RunDiff.PERCENTILES) {
+        sb.append(", p").append((int) (p * 100)).append(' ').append(hi.format(hi.percentile(p)));
+      }
+      sb.append(", max ").append(hi.format(hi.myValues[hi.myValues.length - 1])).append('\n');
+    }
+    if (sb.length() == 0) {
+      sb.append("no commands\n");
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  static String json(@NotNull Aggregator.State state) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"hists\":[");
+    for (int h = 0; h < state.myHists.size(); h++) {
+      Aggregator.HistUi hist = state.myHists.get(h);
+      sb.append(h > 0 ? "," : "").append("{\"name\":");
+      string(sb, hist.getHistName());
+      sb.append(",\"total\":").append(hist.getTotal())
+        .append(",\"samplingRatio\":").append(hist.getSamplingRatio())
+        .append(",\"samplingError\":").append(hist.getSamplingError())
+        .append(",\"tree\":").append(hist.isTree())
+        .append(",\"buckets\":{");
+      for (int i = 0; i < hist.getSize(); i++) {
+        sb.append(i > 0 ? "," : "");
+        // tree hists list visible nodes by their prefixes
+        String path = hist.getPath(i);
+        string(sb, path != null ? path : hist.getBucketName(i));
+        sb.append(':').append(hist.getCount(i));
+      }
+      sb.append("}}");
+    }
+    sb.append("],\"charts\":[");
+    for (int c = 0; c < state.myCharts.size(); c++) {
+      Aggregator.ChartUi chart = state.myCharts.get(c);
+      sb.append(c > 0 ? "," : "").append("{\"name\":");
+      string(sb, chart.name);
+      sb.append(",\"lateCounts\":").append(chart.lateCounts);
+      sb.append(",\"futureCounts\":").append(chart.futureCounts);
+      sb.append(",\"series\":[");
+      boolean first = true;
+      for (Aggregator.SeriesUi series : chart.series.values()) {
+        sb.append(first ? "" : ",").append("{\"name\":");
+        string(sb, series.name);
+        sb.append(",\"gauge\":").append(series.gauge)
+          .append(",\"total\":").append(series.total)
+          .append(",\"max\":").append(series.max)
+          .append(",\"last\":").append(series.last).append('}');
+        first = false;
+      }
+      sb.append("]}");
+    }
+    sb.append("],\"h2s\":[");
+    for (int i = 0; i < state.myH2s.size(); i++) {
+      Aggregator.H2Ui h2 = state.myH2s.get(i);
+      sb.append(i > 0 ? "," : "").append("{\"name\":");
+      string(sb, h2.myName);
+      sb.append(",\"total\":").append(h2.myTotal).append(",\"cells\":[");
+      // non-empty cells as [x lower bound, y lower bound, count]
+      boolean first = true;
+      for (int y = 0; y < h2.myHeight; y++) {
+        for (int x = 0; x < h2.myWidth; x++) {
+          long count = h2.myCounts[y * h2.myWidth + x];
+          if (count > 0) {
+            sb.append(first ? "" : ",").append('[').append(Aggregator.H2Ui.lowerBound(h2.myMinX + x)).append(',')
+              .append(Aggregator.H2Ui.lowerBound(h2.myMinY + y)).append(',').append(count).append(']');
+            first = false;
+          }
+        }
+      }
+      sb.append("]}");
+    }
+    sb.append(']');
+    Aggregator.HiUi hi = state.myHi;
+    if (hi != null && hi.myValues.length > 0) {
+      // values are numbers in the base unit
+      sb.append(",\"hi\":{\"count\":").append(hi.myValues.length).append(",\"unit\":");
+      string(sb, hi.myUnit);
+      sb.append(",\"min\":").append(ValueParser.format(hi.myValues[0], ""));
+      for (double p : RunDiff.PERCENTILES) {
+        sb.append(",\"p").append((int) (p * 100)).append("\":").append(ValueParser.format(hi.percentile(p), ""));
+      }
+      sb.append(",\"max\":").append(ValueParser.format(hi.myValues[hi.myValues.length - 1], "")).append('}');
+    }
+    if (state.myEvictionNote != null) {
+      sb.append(",\"evictionNote\":");
+      string(sb, state.myEvictionNote);
+    }
+    sb.append(",\"breaches\":[");
+    for (int i = 0; i < state.myBreaches.size(); i++) {
+      sb.append(i > 0 ? "," : "");
+      string(sb, state.myBreaches.get(i));
+    }
+    sb.append(']');
+    return sb.append("}\n").toString();
+  }
+
+  private static void string(@NotNull StringBuilder sb, @NotNull String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
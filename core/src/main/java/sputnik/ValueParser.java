@@ -0,0 +1,234 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Parses Hi values like '123', '12.7ms', '3.2e6 B/s' or '-0.5' into fixed-point longs with {@link #FRACTION_DIGITS}
+ * decimal digits in the base unit of the value: times are in microseconds, sizes in bytes, rates in bytes per second.
+ * Values with other text after the number, like '12abc', are rejected. Parsing doesn't allocate.
+ *
+ * A parser keeps the unit of the last value, so it is created for every source of commands like {@link CommandParser}.
+ */
+final class ValueParser {
+  static final int FRACTION_DIGITS = 3;
+  static final long SCALE = 1000;
+  static final String TIME = "us";
+  static final String SIZE = "B";
+  static final String RATE = "B/s";
+
+  private static final Unit[] UNITS = {
+    new Unit("ns", TIME, 1, -3),
+    new Unit("us", TIME, 1, 0),
+    new Unit("\u00b5s", TIME, 1, 0),
+    new Unit("ms", TIME, 1, 3),
+    new Unit("s", TIME, 1, 6),
+    new Unit("min", TIME, 60, 6),
+    new Unit("h", TIME, 3600, 6),
+    new Unit("B", SIZE, 1, 0),
+    new Unit("KB", SIZE, 1, 3),
+    new Unit("MB", SIZE, 1, 6),
+    new Unit("GB", SIZE, 1, 9),
+    new Unit("TB", SIZE, 1, 12),
+    new Unit("KiB", SIZE, 1L << 10, 0),
+    new Unit("MiB", SIZE, 1L << 20, 0),
+    new Unit("GiB", SIZE, 1L << 30, 0),
+    new Unit("TiB", SIZE, 1L << 40, 0),
+    new Unit("B/s", RATE, 1, 0),
+    new Unit("KB/s", RATE, 1, 3),
+    new Unit("MB/s", RATE, 1, 6),
+    new Unit("GB/s", RATE, 1, 9),
+    new Unit("KiB/s", RATE, 1L << 10, 0),
+    new Unit("MiB/s", RATE, 1L << 20, 0),
+    new Unit("GiB/s", RATE, 1L << 30, 0),
+  };
+  // display units of base units, smallest first
+  private static final Unit[] TIME_UNITS = {UNITS[0], UNITS[1], UNITS[3], UNITS[4]};
+  private static final Unit[] SIZE_UNITS = {UNITS[7], UNITS[8], UNITS[9], UNITS[10], UNITS[11]};
+  private static final Unit[] RATE_UNITS = {UNITS[16], UNITS[17], UNITS[18], UNITS[19]};
+  // at most this many significant digits of the mantissa are kept
+  private static final int MAX_DIGITS = 18;
+  private static final int MAX_EXPONENT = 100;
+
+  // results of the last successful parse
+  long myValue;
+  @NotNull String myUnit = "";
+
+  private static final class Unit {
+    final String myName;
+    final String myBase;
+    // the unit is myFactor * 10^myPow10 of its base unit
+    final long myFactor;
+    final int myPow10;
+
+    private Unit(@NotNull String name, @NotNull String base, long factor, int pow10) {
+      myName = name;
+      myBase = base;
+      myFactor = factor;
+      myPow10 = pow10;
+    }
+  }
+
+  // parses text[start, end), returns false if it is not a number optionally followed by a known unit
+  boolean parse(@NotNull String text, int start, int end) {
+    int i = skipSpaces(text, start, end);
+    boolean negative = false;
+    if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+      negative = text.charAt(i) == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean hasDigits = false;
+    for (; i < end && isDigit(text.charAt(i)); i++) {
+      hasDigits = true;
+      if (digits < MAX_DIGITS) {
+        mantissa = mantissa * 10 + (text.charAt(i) - '0');
+        digits += mantissa != 0 ? 1 : 0;
+      } else {
+        exponent++;
+      }
+    }
+    if (i < end && text.charAt(i) == '.') {
+      for (i++; i < end && isDigit(text.charAt(i)); i++) {
+        hasDigits = true;
+        if (digits < MAX_DIGITS) {
+          mantissa = mantissa * 10 + (text.charAt(i) - '0');
+          digits += mantissa != 0 ? 1 : 0;
+          exponent--;
+        }
+      }
+    }
+    if (!hasDigits) {
+      return false;
+    }
+    if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+      int j = i + 1;
+      boolean negativeExponent = false;
+      if (j < end && (text.charAt(j) == '-' || text.charAt(j) == '+')) {
+        negativeExponent = text.charAt(j) == '-';
+        j++;
+      }
+      if (j < end && isDigit(text.charAt(j))) {
+        int e = 0;
+        for (; j < end && isDigit(text.charAt(j)); j++) {
+          e = Math.min(MAX_EXPONENT, e * 10 + (text.charAt(j) - '0'));
+        }
+        exponent += negativeExponent ? -e : e;
+        i = j;
+      }
+    }
+    i = skipSpaces(text, i, end);
+    int unitEnd = end;
+    while (unitEnd > i && text.charAt(unitEnd - 1) == ' ') {
+      unitEnd--;
+    }
+    long factor = 1;
+    String unit = "";
+    if (i < unitEnd) {
+      Unit known = find(text, i, unitEnd);
+      if (known == null) {
+        return false;
+      }
+      factor = known.myFactor;
+      exponent += known.myPow10;
+      unit = known.myBase;
+    }
+    long value = scale(multiply(mantissa, factor), exponent + FRACTION_DIGITS);
+    myValue = negative ? -value : value;
+    myUnit = unit;
+    return true;
+  }
+
+  // value in a unit as fixed-point in the base unit of the unit, for sources which parse numbers themselves
+  static long scaled(double value, @NotNull String unitName) {
+    Unit unit = find(unitName, 0, unitName.length());
+    double result = unit != null ? value * unit.myFactor * Math.pow(10, unit.myPow10) : value;
+    return Math.round(result * SCALE);
+  }
+
+  // formats the fixed-point value in the base unit with the largest display unit it is at least 1 of
+  @NotNull
+  static String format(long value, @NotNull String unit) {
+    Unit[] units = switch (unit) {
+      case TIME -> TIME_UNITS;
+      case SIZE -> SIZE_UNITS;
+      case RATE -> RATE_UNITS;
+      default -> null;
+    };
+    if (units == null) {
+      return number(value, 1) + (unit.isEmpty() ? "" : " " + unit);
+    }
+    Unit display = units[0];
+    for (Unit u : units) {
+      if (Math.abs((double) value) >= SCALE * u.myFactor * Math.pow(10, u.myPow10)) {
+        display = u;
+      }
+    }
+    return number(value, display.myFactor * Math.pow(10, display.myPow10)) + " " + display.myName;
+  }
+
+  @NotNull
+  private static String number(long value, double unitSize) {
+    if (unitSize == 1 && value % SCALE == 0) {
+      return String.valueOf(value / SCALE); // exact for integer values
+    }
+    String result = String.format(Locale.ROOT, "%.3f", value / (SCALE * unitSize));
+    int end = result.length();
+    while (result.charAt(end - 1) == '0') {
+      end--;
+    }
+    if (result.charAt(end - 1) == '.') {
+      end--;
+    }
+    return result.substring(0, end);
+  }
+
+  @Nullable
+  private static Unit find(@NotNull String text, int start, int end) {
+    for (Unit unit : UNITS) {
+      if (unit.myName.length() == end - start && text.regionMatches(start, unit.myName, 0, end - start)) {
+        return unit;
+      }
+    }
+    return null;
+  }
+
+  // value * 10^pow10, rounded and saturated
+  private static long scale(long value, int pow10) {
+    for (; pow10 > 0 && value != 0; pow10--) {
+      value = multiply(value, 10);
+    }
+    if (pow10 < 0) {
+      if (pow10 < -MAX_DIGITS) {
+        return 0;
+      }
+      long divisor = 1;
+      for (; pow10 < 0; pow10++) {
+        divisor *= 10;
+      }
+      value = value / divisor + (value % divisor >= (divisor + 1) / 2 ? 1 : 0);
+    }
+    return value;
+  }
+
+  // both are non-negative
+  private static long multiply(long a, long b) {
+    long result = a * b;
+    return Math.multiplyHigh(a, b) != 0 || result < 0 ? Long.MAX_VALUE : result;
+  }
+
+  private static int skipSpaces(@NotNull String text, int i, int end) {
+    while (i < end && text.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
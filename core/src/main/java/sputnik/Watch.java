@@ -0,0 +1,237 @@
+package sputnik;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Threshold on a live metric, parsed from text like
+ * <pre>
+ * Hi(p99) > 5ms
+ * share('alloc','Foo') > 20%
+ * rate('requests','ok') < 1 for 3s
+ * </pre>
+ * Hi(pN) is a percentile of the integer histogram, its threshold can have a unit like Hi values, e.g. Hi(p99) > 12.5ms,
+ * then the watch holds only while Hi values have the same kind of unit; without a unit the threshold is in the base unit
+ * (microseconds for times, bytes for sizes) of any Hi values. Share is the part of the hist total in the bucket,
+ * rate is the last per second value of the chart series. The watch is breached when the condition holds
+ * for the given time, it is evaluated by {@link Aggregator} on every chart sample.
+ */
+final class Watch {
+  static final String HI = "hi";
+  static final String SHARE = "share";
+  static final String RATE = "rate";
+
+  final String myText;
+  final String myKind;
+  // hist and bucket or chart and series names, empty for Hi
+  final String myName;
+  final String mySubName;
+  // 0..1, only for Hi
+  final double myPercentile;
+  // one of >, >=, <, <=
+  final String myOp;
+  // fixed-point for Hi, see ValueParser
+  final double myThreshold;
+  // base unit of the Hi threshold
+  final String myUnit;
+  final long myForMillis;
+
+  private Watch(@NotNull String text, @NotNull String kind, @NotNull String name, @NotNull String subName, double percentile,
+                @NotNull String op, double threshold, @NotNull String unit, long forMillis) {
+    myText = text;
+    myKind = kind;
+    myName = name;
+    mySubName = subName;
+    myPercentile = percentile;
+    myOp = op;
+    myThreshold = threshold;
+    myUnit = unit;
+    myForMillis = forMillis;
+  }
+
+  boolean test(double value) {
+    return switch (myOp) {
+      case ">" -> value > myThreshold;
+      case ">=" -> value >= myThreshold;
+      case "<" -> value < myThreshold;
+      default -> value <= myThreshold;
+    };
+  }
+
+  boolean isUpperBound() {
+    return myOp.startsWith(">");
+  }
+
+  // whether the Hi threshold can be compared with Hi values in the base unit, 5ms with bytes can't
+  boolean isComparable(@NotNull String hiUnit) {
+    return myUnit.isEmpty() || myUnit.equals(hiUnit);
+  }
+
+  @NotNull
+  String format(double value) {
+    if (myKind.equals(SHARE)) {
+      return String.format("%.1f%%", 100 * value);
+    }
+    if (myKind.equals(HI)) {
+      return ValueParser.format((long) value, myUnit);
+    }
+    return value == (long) value ? String.valueOf((long) value) : String.valueOf(value);
+  }
+
+  // one watch per line, empty lines are skipped
+  @NotNull
+  static List<Watch> parseAll(@NotNull String text) {
+    List<Watch> result = new ArrayList<>();
+    for (String line : text.split("\n")) {
+      if (!line.isBlank()) {
+        result.add(parse(line.trim()));
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  static Watch parse(@NotNull String text) {
+    Parser p = new Parser(text);
+    String kind;
+    String name = "";
+    String subName = "";
+    double percentile = 0;
+    if (p.skip("Hi(p")) {
+      kind = HI;
+      percentile = p.number() / 100;
+      if (!(percentile > 0 && percentile < 1)) {
+        throw p.error("percentile must be between 0 and 100");
+      }
+      p.expect(")");
+    } else {
+      if (p.skip("share(")) {
+        kind = SHARE;
+      } else if (p.skip("rate(")) {
+        kind = RATE;
+      } else {
+        throw p.error("expected Hi(pN), share('hist','bucket') or rate('chart','series')");
+      }
+      name = p.string();
+      p.expect(",");
+      subName = p.string();
+      p.expect(")");
+    }
+    String op;
+    if (p.skip(">=")) {
+      op = ">=";
+    } else if (p.skip("<=")) {
+      op = "<=";
+    } else if (p.skip(">")) {
+      op = ">";
+    } else if (p.skip("<")) {
+      op = "<";
+    } else {
+      throw p.error("expected >, >=, < or <=");
+    }
+    double threshold;
+    String unit = "";
+    if (kind.equals(HI)) {
+      ValueParser value = p.value();
+      threshold = value.myValue;
+      unit = value.myUnit;
+    } else {
+      threshold = p.number();
+      if (p.skip("%")) {
+        threshold /= 100;
+      }
+    }
+    long forMillis = 0;
+    if (p.skip("for")) {
+      forMillis = (long) (p.number() * 1000);
+      p.expect("s");
+    }
+    if (!p.atEnd()) {
+      throw p.error("unexpected text");
+    }
+    return new Watch(text, kind, name, subName, percentile, op, threshold, unit, forMillis);
+  }
+
+  private static final class Parser {
+    private final String myText;
+    private int myIdx = 0;
+
+    private Parser(@NotNull String text) {
+      myText = text;
+    }
+
+    private void skipSpaces() {
+      while (myIdx < myText.length() && myText.charAt(myIdx) == ' ') {
+        myIdx++;
+      }
+    }
+
+    private boolean skip(@NotNull String s) {
+      skipSpaces();
+      if (myText.startsWith(s, myIdx)) {
+        myIdx += s.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(@NotNull String s) {
+      if (!skip(s)) {
+        throw error("expected '" + s + "'");
+      }
+    }
+
+    private boolean atEnd() {
+      skipSpaces();
+      return myIdx == myText.length();
+    }
+
+    @NotNull
+    private String string() {
+      skipSpaces();
+      char quote = myIdx < myText.length() ? myText.charAt(myIdx) : 0;
+      int end = quote == '"' || quote == '\'' ? myText.indexOf(quote, myIdx + 1) : -1;
+      if (end < 0) {
+        throw error("expected quoted name");
+      }
+      String result = myText.substring(myIdx + 1, end);
+      myIdx = end + 1;
+      return result;
+    }
+
+    // number with an optional unit up to 'for' or the end
+    @NotNull
+    private ValueParser value() {
+      skipSpaces();
+      int end = myText.indexOf(" for ", myIdx);
+      end = end < 0 ? myText.length() : end;
+      ValueParser parser = new ValueParser();
+      if (!parser.parse(myText, myIdx, end)) {
+        throw error("expected number with an optional unit like ms, MB or B/s");
+      }
+      myIdx = end;
+      return parser;
+    }
+
+    private double number() {
+      skipSpaces();
+      int start = myIdx;
+      while (myIdx < myText.length() && (Character.isDigit(myText.charAt(myIdx)) || myText.charAt(myIdx) == '.')) {
+        myIdx++;
+      }
+      try {
+        return Double.parseDouble(myText.substring(start, myIdx));
+      } catch (NumberFormatException e) {
+        myIdx = start;
+        throw error("expected number");
+      }
+    }
+
+    @NotNull
+    private IllegalArgumentException error(@NotNull String message) {
+      return new IllegalArgumentException("'" + myText + "': " + message + " at " + (myIdx + 1));
+    }
+  }
+}
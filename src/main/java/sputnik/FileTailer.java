@@ -0,0 +1,205 @@
+package sputnik;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a file like 'tail -F' and passes commands from appended lines to Sputnik.
+ *
+ * Only bytes appended since the last poll are read, lines which don't start with \u0001 are skipped without decoding.
+ * A file which exists when tailing starts is read from its end, a file which appears later is read from the beginning.
+ * When the file is truncated it is read from the beginning, when it is rotated the old file is read till the end
+ * and then the new one is read from the beginning. The offset is saved in settings, so tailing the same file
+ * again continues where it stopped.
+ */
+final class FileTailer {
+  private static final Logger LOG = Logger.getInstance(FileTailer.class);
+  private static final int BUF_SIZE = 1024 * 1024;
+  private static final long POLL_MILLIS = 200;
+  // a poll reads at most this much, so stop() doesn't wait till a big file is read
+  private static final long MAX_POLL_BYTES = 16 * BUF_SIZE;
+
+  private final Path myPath;
+  private final CommandParser myParser;
+  private final ByteBuffer myBuf = ByteBuffer.allocate(BUF_SIZE);
+  private FileChannel myChannel;
+  private String myFileKey;
+  // position in the file after the last read byte
+  private long myPosition;
+  // the current line didn't fit into the buffer, it is skipped till the line separator
+  private boolean mySkipLine;
+  // no file was opened since start(), an existing file without a saved offset is read from its end
+  private boolean myAtStart = true;
+  private volatile long myReadBytes;
+  private ScheduledFuture<?> myFuture;
+
+  FileTailer(@NotNull Sputnik s, @NotNull Path path) {
+    myPath = path;
+    myParser = new CommandParser(s);
+  }
+
+  @NotNull
+  Path getPath() {
+    return myPath;
+  }
+
+  long getReadBytes() {
+    return myReadBytes;
+  }
+
+  synchronized void start() {
+    myFuture = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(this::poll, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stop() {
+    if (myFuture != null) {
+      myFuture.cancel(false);
+    }
+    saveOffset();
+    close();
+  }
+
+  private synchronized void poll() {
+    if (myFuture != null && myFuture.isCancelled()) {
+      return;
+    }
+    try {
+      String fileKey = fileKey();
+      if (myChannel == null) {
+        if (fileKey == null) {
+          myAtStart = false;
+          return; // wait for the file to appear, everything in it will be new
+        }
+        open(fileKey, savedOffset(fileKey));
+        myAtStart = false;
+      }
+      if (myChannel.size() < myPosition) {
+        // truncated
+        myPosition = 0;
+        resetLine();
+      }
+      boolean atEnd = read();
+      if (atEnd && fileKey != null && !fileKey.equals(myFileKey)) {
+        // rotated, the old file is read till the end, the next poll reads the new one
+        close();
+        open(fileKey, 0);
+      }
+      saveOffset();
+    } catch (IOException e) {
+      LOG.debug("Cannot read " + myPath, e);
+      close();
+    }
+  }
+
+  private void open(@NotNull String fileKey, long offset) throws IOException {
+    myChannel = FileChannel.open(myPath, StandardOpenOption.READ);
+    myFileKey = fileKey;
+    myPosition = offset >= 0 && offset <= myChannel.size() ? offset : myChannel.size();
+    resetLine();
+  }
+
+  private void close() {
+    if (myChannel != null) {
+      try {
+        myChannel.close();
+      } catch (IOException e) {
+        LOG.debug(e);
+      }
+      myChannel = null;
+    }
+  }
+
+  private void resetLine() {
+    myBuf.clear();
+    mySkipLine = false;
+  }
+
+  // reads at most MAX_POLL_BYTES, returns whether the end of the file was reached
+  private boolean read() throws IOException {
+    long limit = myPosition + MAX_POLL_BYTES;
+    while (myPosition < limit) {
+      int read = myChannel.read(myBuf, myPosition);
+      if (read <= 0) {
+        return true;
+      }
+      myPosition += read;
+      myReadBytes += read;
+      myBuf.flip();
+      scanLines();
+      if (myBuf.position() == 0 && myBuf.limit() == myBuf.capacity()) {
+        // line is longer than the buffer, it cannot be a command
+        mySkipLine = true;
+        myBuf.clear();
+      } else {
+        myBuf.compact();
+      }
+    }
+    return false;
+  }
+
+  // parses complete lines between position and limit and sets position after the last complete line
+  private void scanLines() {
+    byte[] bytes = myBuf.array();
+    int end = myBuf.limit();
+    int lineStart = myBuf.position();
+    for (int i = lineStart; i < end; i++) {
+      if (bytes[i] == '\n') {
+        if (!mySkipLine && bytes[lineStart] == 1) {
+          int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+          myParser.parse(new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+        }
+        mySkipLine = false;
+        lineStart = i + 1;
+      }
+    }
+    myBuf.position(lineStart);
+  }
+
+  // file key identifies the file behind the path, it changes when the file is rotated
+  @Nullable
+  private String fileKey() throws IOException {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(myPath, BasicFileAttributes.class);
+      Object key = attrs.fileKey();
+      return key != null ? key.toString() : attrs.creationTime().toString();
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  // offset saved for the same file, otherwise -1 to start from the end of the file found by start() or 0 for a new file
+  private long savedOffset(@NotNull String fileKey) {
+    SputnikSettings.Data settings = SputnikSettings.getInstance().getState();
+    String path = myPath.toString();
+    long start = myAtStart ? -1 : 0;
+    if (fileKey.equals(settings.tailFileKeys.get(path))) {
+      return settings.tailOffsets.getOrDefault(path, start);
+    }
+    return start;
+  }
+
+  private void saveOffset() {
+    if (myFileKey == null) {
+      return;
+    }
+    SputnikSettings.Data settings = SputnikSettings.getInstance().getState();
+    String path = myPath.toString();
+    // start of the incomplete line, it will be read again
+    settings.tailOffsets.put(path, myPosition - (mySkipLine ? 0 : myBuf.position()));
+    settings.tailFileKeys.put(path, myFileKey);
+  }
+}
@@ -0,0 +1,78 @@
+package sputnik;
+
+import com.intellij.icons.AllIcons;
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+public class ImportJfrAction extends AnAction implements DumbAware {
+  public ImportJfrAction() {
+    super("Import JFR Recording into Sputnik", "Build hists, Hi and charts from events of a JFR recording", AllIcons.Actions.Download);
+  }
+
+  @Override
+  public void update(@NotNull AnActionEvent e) {
+    e.getPresentation().setEnabled(e.getProject() != null);
+  }
+
+  @Override
+  public void actionPerformed(@NotNull AnActionEvent e) {
+    Project project = e.getProject();
+    if (project == null) {
+      return;
+    }
+    VirtualFile file = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFileNoJarsDescriptor(), project, null);
+    if (file == null) {
+      return;
+    }
+    SputnikSettings.Data settings = SputnikSettings.getInstance().getState();
+    String text = Messages.showMultilineInputDialog(
+      project, "Mappings, one per line: hist|chart <event type> <key field> [<value field>[/N]] or hi <event type> <field>",
+      "Import JFR Recording", settings.jfrMappings, null, null);
+    if (text == null) {
+      return;
+    }
+    List<JfrImporter.Mapping> mappings;
+    try {
+      mappings = JfrImporter.Mapping.parseAll(text);
+    } catch (IllegalArgumentException ex) {
+      Messages.showErrorDialog(project, ex.getMessage(), "Import JFR Recording");
+      return;
+    }
+    settings.jfrMappings = text;
+    Sputnik sputnik = project.getService(Sputnik.class);
+    sputnik.start();
+    Path path = Path.of(file.getPath());
+    new Task.Backgroundable(project, "Importing " + file.getName() + " into Sputnik", true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        try {
+          new JfrImporter(sputnik, mappings).run(path, events -> {
+            indicator.checkCanceled();
+            indicator.setText2(events + " events");
+          });
+        } catch (IOException ex) {
+          NotificationGroupManager.getInstance().getNotificationGroup("Sputnik")
+                  .createNotification("Cannot import " + path, String.valueOf(ex.getMessage()), NotificationType.ERROR)
+                  .notify(project);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }.queue();
+  }
+}
@@ -0,0 +1,220 @@
+package sputnik;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples heap, GC, thread count and CPU load of a launched JVM over JMX and adds them to charts next to the user's ones:
+ * gauges 'jvm heap MB', 'jvm threads' and 'jvm cpu %' and counters 'jvm gc ms' and 'jvm gc count', with a series per run
+ * (and per collector for GC).
+ *
+ * The JVM is found with the Attach API among the launched process and its descendants, so launchers like Maven work too,
+ * the local management agent is started in it if needed. Every chart sample reads all attributes of an MBean in one call.
+ * When the process exits or the connection drops sampling stops and the gauges of the run fall to 0 instead of holding
+ * their last values.
+ */
+final class JvmSampler {
+  private static final Logger LOG = Logger.getInstance(JvmSampler.class);
+  // the JVM may be started by a launcher a bit later, it's looked for this many samples
+  private static final int CONNECT_ATTEMPTS = 30;
+  private static final long MB = 1024 * 1024;
+  private static final String HEAP = "jvm heap MB";
+  private static final String THREADS = "jvm threads";
+  private static final String CPU = "jvm cpu %";
+  private static final ObjectName MEMORY = name("java.lang:type=Memory");
+  private static final ObjectName THREADING = name("java.lang:type=Threading");
+  private static final ObjectName OS = name("java.lang:type=OperatingSystem");
+  private static final ObjectName GCS = name("java.lang:type=GarbageCollector,*");
+  private static final String[] MEMORY_ATTRS = {"HeapMemoryUsage"};
+  private static final String[] THREADING_ATTRS = {"ThreadCount"};
+  private static final String[] OS_ATTRS = {"ProcessCpuLoad"};
+  private static final String[] GC_ATTRS = {"CollectionCount", "CollectionTime"};
+
+  private final Sputnik mySputnik;
+  private final ProcessHandle myProcess;
+  private final String myRunName;
+  private ScheduledFuture<?> myFuture;
+  // gauges of the run were written, they are closed when sampling stops
+  private boolean mySampled = false;
+
+  // accessed only by sample()
+  private int myConnectAttempts = 0;
+  private final Set<String> myFailedPids = new HashSet<>();
+  private @Nullable JMXConnector myConnector;
+  private MBeanServerConnection myConnection;
+  // collector name -> its MBean and the last count and time
+  private final Map<String, Gc> myGcs = new TreeMap<>();
+
+  private static final class Gc {
+    final ObjectName myName;
+    long myCount = -1;
+    long myTime = -1;
+
+    private Gc(@NotNull ObjectName name) {
+      myName = name;
+    }
+  }
+
+  JvmSampler(@NotNull Sputnik s, @NotNull ProcessHandle process, @NotNull String runName) {
+    mySputnik = s;
+    myProcess = process;
+    myRunName = runName;
+  }
+
+  synchronized void start() {
+    myFuture = AppExecutorUtil.getAppScheduledExecutorService()
+            .scheduleWithFixedDelay(this::sample, 0, Aggregator.SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stop() {
+    if (myFuture != null) {
+      myFuture.cancel(false);
+    }
+    close();
+    // otherwise the last heap, thread and CPU values stay on the charts as if the process were still running
+    if (mySampled) {
+      mySampled = false;
+      for (String gauge : new String[]{HEAP, THREADS, CPU}) {
+        mySputnik.closeGauge(gauge, myRunName);
+      }
+    }
+  }
+
+  private synchronized void sample() {
+    if (myFuture != null && myFuture.isCancelled()) {
+      return;
+    }
+    if (myConnection == null) {
+      if (myConnectAttempts == CONNECT_ATTEMPTS || !myProcess.isAlive()) {
+        myFuture.cancel(false);
+        return;
+      }
+      myConnectAttempts++;
+      if (!connect()) {
+        return;
+      }
+    }
+    try {
+      CompositeData heap = (CompositeData) value(myConnection.getAttributes(MEMORY, MEMORY_ATTRS), "HeapMemoryUsage");
+      if (heap != null) {
+        mySputnik.g(HEAP, myRunName, toInt((Long) heap.get("used") / MB), false);
+        mySampled = true;
+      }
+      Number threads = (Number) value(myConnection.getAttributes(THREADING, THREADING_ATTRS), "ThreadCount");
+      if (threads != null) {
+        mySputnik.g(THREADS, myRunName, threads.intValue(), false);
+        mySampled = true;
+      }
+      // negative when not available yet
+      Number cpu = (Number) value(myConnection.getAttributes(OS, OS_ATTRS), "ProcessCpuLoad");
+      if (cpu != null && cpu.doubleValue() >= 0) {
+        mySputnik.g(CPU, myRunName, (int) Math.round(cpu.doubleValue() * 100), false);
+        mySampled = true;
+      }
+      for (Map.Entry<String, Gc> kv : myGcs.entrySet()) {
+        Gc gc = kv.getValue();
+        AttributeList attrs = myConnection.getAttributes(gc.myName, GC_ATTRS);
+        Number count = (Number) value(attrs, "CollectionCount");
+        Number time = (Number) value(attrs, "CollectionTime");
+        if (count == null || time == null) {
+          continue;
+        }
+        // counts since the last sample, nothing is added for the first one
+        String series = myRunName + " " + kv.getKey();
+        if (gc.myCount >= 0) {
+          mySputnik.c("jvm gc count", series, toInt(count.longValue() - gc.myCount));
+          mySputnik.c("jvm gc ms", series, toInt(time.longValue() - gc.myTime));
+        }
+        gc.myCount = count.longValue();
+        gc.myTime = time.longValue();
+      }
+    } catch (IOException | JMException | ClassCastException e) {
+      // the process has exited or doesn't allow reading
+      LOG.debug("Stopped sampling JVM of " + myRunName, e);
+      stop();
+    }
+  }
+
+  // attaches to the first JVM among the process and its descendants which allows it
+  private boolean connect() {
+    Set<String> pids = new HashSet<>();
+    pids.add(String.valueOf(myProcess.pid()));
+    myProcess.descendants().forEach(p -> pids.add(String.valueOf(p.pid())));
+    for (VirtualMachineDescriptor descriptor : VirtualMachine.list()) {
+      if (!pids.contains(descriptor.id()) || myFailedPids.contains(descriptor.id())) {
+        continue;
+      }
+      try {
+        String address;
+        VirtualMachine vm = VirtualMachine.attach(descriptor);
+        try {
+          address = vm.startLocalManagementAgent();
+        } finally {
+          vm.detach();
+        }
+        myConnector = JMXConnectorFactory.connect(new JMXServiceURL(address));
+        myConnection = myConnector.getMBeanServerConnection();
+        for (ObjectName name : myConnection.queryNames(GCS, null)) {
+          myGcs.put(name.getKeyProperty("name"), new Gc(name));
+        }
+        return true;
+      } catch (AttachNotSupportedException | IOException e) {
+        LOG.info("Cannot sample JVM " + descriptor.id() + " of " + myRunName + ": " + e.getMessage());
+        myFailedPids.add(descriptor.id());
+        close();
+      }
+    }
+    return false;
+  }
+
+  private void close() {
+    if (myConnector != null) {
+      try {
+        myConnector.close();
+      } catch (IOException ignored) {
+      }
+    }
+    myConnector = null;
+    myConnection = null;
+    myGcs.clear();
+  }
+
+  // attributes which cannot be read are missing in the list
+  @Nullable
+  private static Object value(@NotNull AttributeList attrs, @NotNull String name) {
+    for (Attribute attr : attrs.asList()) {
+      if (attr.getName().equals(name)) {
+        return attr.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static int toInt(long value) {
+    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+  }
+
+  @NotNull
+  private static ObjectName name(@NotNull String name) {
+    try {
+      return new ObjectName(name);
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
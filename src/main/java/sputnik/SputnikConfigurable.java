@@ -0,0 +1,132 @@
+package sputnik;
+
+import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.options.ConfigurationException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.ui.JBIntSpinner;
+import com.intellij.ui.components.JBCheckBox;
+import com.intellij.ui.components.JBTextArea;
+import com.intellij.ui.components.JBTextField;
+import com.intellij.util.ui.FormBuilder;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.util.List;
+
+public class SputnikConfigurable implements Configurable {
+  private JBIntSpinner myMemoryBudget;
+  private JBCheckBox myStatsdEnabled;
+  private JBIntSpinner myStatsdPort;
+  private JBTextField myStatsdUnixSocket;
+  private JBCheckBox myJvmSampling;
+  private JBTextArea myWatches;
+  private JBTextArea myBucketRules;
+
+  @Nls
+  @Override
+  public String getDisplayName() {
+    return "Sputnik";
+  }
+
+  @Nullable
+  @Override
+  public JComponent createComponent() {
+    myMemoryBudget = new JBIntSpinner(64, 1, 64 * 1024);
+    myStatsdEnabled = new JBCheckBox("Listen for StatsD metrics and commands from other processes");
+    myStatsdPort = new JBIntSpinner(8125, 0, 65535);
+    myStatsdUnixSocket = new JBTextField();
+    myJvmSampling = new JBCheckBox("Chart heap, GC, threads and CPU of launched JVMs (JMX)");
+    myWatches = new JBTextArea(5, 40);
+    myBucketRules = new JBTextArea(5, 40);
+    return FormBuilder.createFormBuilder()
+            .addLabeledComponent("Memory budget (MB):", myMemoryBudget)
+            .addComponent(myStatsdEnabled)
+            .addLabeledComponent("Localhost UDP port (0 - disabled):", myStatsdPort)
+            .addLabeledComponent("Unix domain socket path:", myStatsdUnixSocket)
+            .addComponent(myJvmSampling)
+            .addLabeledComponent("Watches, one per line:", myWatches, true)
+            .addTooltip("Hi(p99) > 5000, share('alloc','Foo') > 20%, rate('requests','ok') < 1 for 3s")
+            .addLabeledComponent("Bucket name rules, one per line:", myBucketRules, true)
+            .addTooltip("'requests' digits, * hex, 'callers' prefix 40, 'urls' regex '/user/[^/]+' '/user/*'")
+            .addComponentFillVertically(new JPanel(), 0)
+            .getPanel();
+  }
+
+  @Override
+  public boolean isModified() {
+    SputnikSettings.Data data = SputnikSettings.getInstance().getState();
+    return myMemoryBudget.getNumber() != data.memoryBudgetMb ||
+           myStatsdEnabled.isSelected() != data.statsdEnabled ||
+           myStatsdPort.getNumber() != data.statsdPort ||
+           !myStatsdUnixSocket.getText().equals(data.statsdUnixSocket) ||
+           myJvmSampling.isSelected() != data.jvmSampling ||
+           !myWatches.getText().equals(data.watches) ||
+           !myBucketRules.getText().equals(data.bucketRules);
+  }
+
+  @Override
+  public void apply() throws ConfigurationException {
+    List<Watch> watches;
+    try {
+      watches = Watch.parseAll(myWatches.getText());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("Invalid watch " + e.getMessage());
+    }
+    List<BucketRule> bucketRules;
+    try {
+      bucketRules = BucketRule.parseAll(myBucketRules.getText());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("Invalid bucket rule " + e.getMessage());
+    }
+    SputnikSettings.Data data = SputnikSettings.getInstance().getState();
+    boolean statsdChanged = myStatsdEnabled.isSelected() != data.statsdEnabled ||
+                            myStatsdPort.getNumber() != data.statsdPort ||
+                            !myStatsdUnixSocket.getText().equals(data.statsdUnixSocket);
+    data.memoryBudgetMb = myMemoryBudget.getNumber();
+    data.statsdEnabled = myStatsdEnabled.isSelected();
+    data.statsdPort = myStatsdPort.getNumber();
+    data.statsdUnixSocket = myStatsdUnixSocket.getText();
+    data.jvmSampling = myJvmSampling.isSelected();
+    boolean watchesChanged = !myWatches.getText().equals(data.watches);
+    data.watches = myWatches.getText();
+    boolean bucketRulesChanged = !myBucketRules.getText().equals(data.bucketRules);
+    data.bucketRules = myBucketRules.getText();
+    if (statsdChanged) {
+      SputnikStatsd.getInstance().restart();
+    }
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      Sputnik sputnik = project.getService(Sputnik.class);
+      if (watchesChanged) {
+        sputnik.setWatches(watches);
+      }
+      if (bucketRulesChanged) {
+        sputnik.setBucketRules(bucketRules);
+      }
+    }
+  }
+
+  @Override
+  public void reset() {
+    SputnikSettings.Data data = SputnikSettings.getInstance().getState();
+    myMemoryBudget.setNumber(data.memoryBudgetMb);
+    myStatsdEnabled.setSelected(data.statsdEnabled);
+    myStatsdPort.setNumber(data.statsdPort);
+    myStatsdUnixSocket.setText(data.statsdUnixSocket);
+    myJvmSampling.setSelected(data.jvmSampling);
+    myWatches.setText(data.watches);
+    myBucketRules.setText(data.bucketRules);
+  }
+
+  @Override
+  public void disposeUIResources() {
+    myMemoryBudget = null;
+    myStatsdEnabled = null;
+    myStatsdPort = null;
+    myStatsdUnixSocket = null;
+    myJvmSampling = null;
+    myWatches = null;
+    myBucketRules = null;
+  }
+}
@@ -0,0 +1,67 @@
+package sputnik;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics turned off in running processes, see {@link Control}. The bitmap file is shared by all projects,
+ * so the set is kept for the whole IDE and saved in settings.
+ */
+@Service
+public final class SputnikControl {
+  private static final Logger LOG = Logger.getInstance(SputnikControl.class);
+
+  private Control.Writer myWriter;
+  private boolean myOpenFailed = false;
+
+  @NotNull
+  static SputnikControl getInstance() {
+    return ApplicationManager.getApplication().getService(SputnikControl.class);
+  }
+
+  boolean isOn(@NotNull String name) {
+    return !SputnikSettings.getInstance().getState().offMetrics.contains(name);
+  }
+
+  @NotNull
+  List<String> getOff() {
+    return SputnikSettings.getInstance().getState().offMetrics;
+  }
+
+  synchronized void setOn(@NotNull String name, boolean on) {
+    SputnikSettings.Data settings = SputnikSettings.getInstance().getState();
+    if (isOn(name) == on) {
+      return;
+    }
+    // replaced, not changed, so it can be read without the lock
+    List<String> off = new ArrayList<>(settings.offMetrics);
+    if (on) {
+      off.remove(name);
+    } else {
+      off.add(name);
+    }
+    settings.offMetrics = off;
+    write();
+  }
+
+  // processes started after the IDE restart see metrics turned off before it
+  synchronized void write() {
+    if (myWriter == null && !myOpenFailed) {
+      try {
+        myWriter = new Control.Writer(Control.path());
+      } catch (IOException e) {
+        LOG.warn("Cannot map Sputnik control file " + Control.path(), e);
+        myOpenFailed = true;
+      }
+    }
+    if (myWriter != null) {
+      myWriter.write(SputnikSettings.getInstance().getState().offMetrics);
+    }
+  }
+}
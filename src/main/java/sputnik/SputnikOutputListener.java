@@ -1,139 +1,138 @@
 package sputnik;
 
 import com.intellij.execution.ExecutionListener;
+import com.intellij.execution.process.BaseProcessHandler;
 import com.intellij.execution.process.ProcessAdapter;
 import com.intellij.execution.process.ProcessEvent;
 import com.intellij.execution.process.ProcessHandler;
 import com.intellij.execution.runners.ExecutionEnvironment;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class SputnikOutputListener implements ExecutionListener {
   @Override
   public void processStarting(@NotNull String executorId, @NotNull ExecutionEnvironment env, @NotNull ProcessHandler handler) {
     Sputnik s = env.getProject().getService(Sputnik.class);
     s.start();
-    handler.addProcessListener(new ProcListener(s));
+    Aggregator.Run run = s.runStarted(env.getRunProfile().getName());
+    JvmSampler sampler = null;
+    if (SputnikSettings.getInstance().getState().jvmSampling && handler instanceof BaseProcessHandler) {
+      sampler = new JvmSampler(s, ((BaseProcessHandler<?>) handler).getProcess().toHandle(), env.getRunProfile().getName());
+      sampler.start();
+    }
+    handler.addProcessListener(new ProcListener(s, run, sampler));
   }
 
+  /**
+   * Process output is read on the thread calling onTextAvailable, so it only queues the text. Splitting it into lines
+   * and parsing is done by a sequential executor, when it falls too far behind new text is dropped.
+   */
   private static class ProcListener extends ProcessAdapter {
+    private static final long MAX_PENDING_CHARS = 16 * 1024 * 1024;
+    // more unparsed text than this makes Sputnik sample commands
+    private static final long OVERLOAD_PENDING_CHARS = 1024 * 1024;
+    // queued instead of the dropped text, the line it was in is skipped
+    private static final String DROPPED = new String("dropped");
+
     private final Sputnik mySputnik;
+    private final Aggregator.Run myRun;
+    private final CommandParser myParser;
+    private final @Nullable JvmSampler mySampler;
+    private final Executor myExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Sputnik output parser", 1);
+    private final ConcurrentLinkedQueue<String> myChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong myPendingChars = new AtomicLong();
+    private final AtomicBoolean myScheduled = new AtomicBoolean();
+
+    // accessed only by myExecutor
     private final StringBuilder myPending = new StringBuilder();
+    private boolean mySkipLine = false;
 
-    public ProcListener(@NotNull Sputnik s) {
+    public ProcListener(@NotNull Sputnik s, @NotNull Aggregator.Run run, @Nullable JvmSampler sampler) {
       mySputnik = s;
+      myRun = run;
+      mySampler = sampler;
+      myParser = new CommandParser(s);
+    }
+
+    @Override
+    public void processTerminated(@NotNull ProcessEvent event) {
+      if (mySampler != null) {
+        mySampler.stop();
+      }
+      // after all queued text is parsed
+      myExecutor.execute(() -> {
+        if (myPending.length() > 0 && !mySkipLine) {
+          myParser.parse(StringUtil.trimTrailing(myPending.toString()));
+        }
+        mySputnik.runFinished(myRun);
+      });
     }
 
     @Override
     public void onTextAvailable(@NotNull ProcessEvent event, @NotNull Key outputType) {
       String eventText = event.getText();
-      String text;
       if (eventText.length() == 0) {
         return;
       }
-      if (eventText.charAt(eventText.length() - 1) == '\n') {
-        text = StringUtil.trimTrailing(myPending + eventText);
-        myPending.setLength(0);
+      if (myPendingChars.addAndGet(eventText.length()) > MAX_PENDING_CHARS) {
+        myPendingChars.addAndGet(-eventText.length());
+        myChunks.add(DROPPED);
       } else {
-        myPending.append(eventText);
-        return;
+        myChunks.add(eventText);
       }
-      // command starts with \u0001 and is at least 4 chars long: \u0001c()
-      if (text.startsWith("\u0001") && text.length() >= 4 && text.charAt(text.length() - 1) == ')') {
-        char c1 = text.charAt(1);
-        if (c1 == 'h') {
-          //\u0001h("histName","bucketName") - add 1 to the bucket in given histogram
-          //\u0001hr("histName") - reset the given histogram
-          if (text.charAt(2) == '(') {
-            int idx = 3;
-            String histName = parseString(text, idx);
-            if (histName == null) {
-              return;
-            }
-            idx += histName.length() + 2;
-            if (text.charAt(idx) != ',') {
-              return;
-            }
-            idx++;
-            String bucketName = parseString(text, idx);
-            if (bucketName == null) {
-              return;
-            }
-            idx += bucketName.length() + 2;
-            if (idx != text.length() - 1) {
-              return;
-            }
-            mySputnik.h(histName, bucketName);
-          } else if (text.charAt(2) == 'r' && text.charAt(3) == '(') {
-            int idx = 4;
-            String histName = parseString(text, idx);
-            if (histName == null) {
-              return;
-            }
-            idx += histName.length() + 2;
-            if (idx != text.length() - 1) {
-              return;
-            }
-            mySputnik.hr(histName);
-          }
-        }
-        if (c1 == 'c') {
-          //\u0001c("chartName","seriesName") - add 1 to the current count of the series in the given chart
-          //\u0001cr - doesn't make sense: char will clear itself in 10 seconds
-          if (text.charAt(2) == '(') {
-            int idx = 3;
-            String chartName = parseString(text, idx);
-            if (chartName == null) {
-              return;
-            }
-            idx += chartName.length() + 2;
-            if (text.charAt(idx) != ',') {
-              return;
-            }
-            idx++;
-            String seriesName = parseString(text, idx);
-            if (seriesName == null) {
-              return;
-            }
-            idx += seriesName.length() + 2;
-            if (idx != text.length() - 1) {
-              return;
-            }
-            mySputnik.c(chartName, seriesName);
-          }
+      if (myScheduled.compareAndSet(false, true)) {
+        myExecutor.execute(this::parseChunks);
+      }
+    }
+
+    private void parseChunks() {
+      myScheduled.set(false); // before poll, so text added after the last poll schedules another run
+      String chunk;
+      while ((chunk = myChunks.poll()) != null) {
+        if (chunk == DROPPED) {
+          mySputnik.overloaded();
+          myPending.setLength(0);
+          mySkipLine = true;
+          continue;
         }
-        //\u0001Hi(int)
-        if (c1 == 'H' && text.length() > 4 &&
-            text.charAt(2) == 'i' && text.charAt(3) == '(' && text.charAt(text.length() - 1) == ')') {
-          try {
-            int endIdx = text.length() - 1;
-            long value = Long.parseLong(text, 4, endIdx, 10);
-            mySputnik.Hi(value);
-          }
-          catch(Exception e) {
-            //ignore
-          }
+        if (myPendingChars.get() > OVERLOAD_PENDING_CHARS) {
+          mySputnik.overloaded();
         }
+        myPendingChars.addAndGet(-chunk.length());
+        parseChunk(chunk);
       }
     }
-  }
 
-  @Nullable
-  private static String parseString(@NotNull String text, int startOffset) {
-    char quote = text.charAt(startOffset);
-    if (quote != '"' && quote != '\'') {
-      return null;
-    }
-    int i = startOffset + 1;
-    while (i < text.length() && text.charAt(i) != quote) {
-      i++;
-    }
-    if (i < text.length()) {
-      return text.substring(startOffset + 1, i);
-    } else {
-      return null;
+    private void parseChunk(@NotNull String chunk) {
+      int lineStart = 0;
+      int lineEnd;
+      while ((lineEnd = chunk.indexOf('\n', lineStart)) >= 0) {
+        if (mySkipLine) {
+          mySkipLine = false;
+        } else if (myPending.length() > 0) {
+          myPending.append(chunk, lineStart, lineEnd);
+          myParser.parse(StringUtil.trimTrailing(myPending.toString()));
+          myPending.setLength(0);
+        } else if (lineEnd > lineStart && chunk.charAt(lineStart) == '\u0001') {
+          myParser.parse(StringUtil.trimTrailing(chunk.substring(lineStart, lineEnd)));
+        }
+        lineStart = lineEnd + 1;
+      }
+      if (lineStart < chunk.length() && !mySkipLine) {
+        if (myPending.length() == 0 && chunk.charAt(lineStart) != '\u0001') {
+          mySkipLine = true; // not a command, no need to keep it
+        } else {
+          myPending.append(chunk, lineStart, chunk.length());
+        }
+      }
     }
   }
 }
@@ -0,0 +1,69 @@
+package sputnik;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+@State(name = "Sputnik", storages = @Storage("sputnik.xml"))
+public final class SputnikSettings implements PersistentStateComponent<SputnikSettings.Data> {
+
+  private Data myData = new Data();
+
+  @NotNull
+  static SputnikSettings getInstance() {
+    return ApplicationManager.getApplication().getService(SputnikSettings.class);
+  }
+
+  @NotNull
+  @Override
+  public Data getState() {
+    return myData;
+  }
+
+  @Override
+  public void loadState(@NotNull Data data) {
+    myData = data;
+  }
+
+  public static final class Data {
+    // approximate limit for hists, charts and run snapshots of one project
+    public int memoryBudgetMb = 64;
+
+    // StatsD and Sputnik commands from processes not started by IDE
+    public boolean statsdEnabled = false;
+    // localhost udp port, 0 - don't listen
+    public int statsdPort = 8125;
+    // unix domain socket path, empty - don't listen
+    public String statsdUnixSocket = "";
+
+    // heap, GC, threads and CPU of launched JVMs are sampled over JMX, see JvmSampler
+    public boolean jvmSampling = false;
+
+    // watches on live metrics, one per line
+    public String watches = "";
+
+    // normalization of bucket names, one rule per line, see BucketRule
+    public String bucketRules = "";
+
+    // mappings of JFR events to hists, Hi and charts, see JfrImporter
+    public String jfrMappings = "hist jdk.ObjectAllocationSample objectClass weight/1024\n" +
+                                "hi jdk.ThreadPark duration\n" +
+                                "chart jdk.GCPhasePause name duration\n";
+
+    // metrics turned off in running processes, see SputnikControl
+    public List<String> offMetrics = new ArrayList<>();
+
+    // tailed file path -> offset to continue from and the key of the file it belongs to
+    public Map<String, Long> tailOffsets = new ConcurrentHashMap<>();
+    public Map<String, String> tailFileKeys = new ConcurrentHashMap<>();
+  }
+}
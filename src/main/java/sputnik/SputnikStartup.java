@@ -0,0 +1,20 @@
+package sputnik;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Files;
+
+public class SputnikStartup implements StartupActivity.DumbAware {
+  @Override
+  public void runActivity(@NotNull Project project) {
+    if (SputnikSettings.getInstance().getState().statsdEnabled) {
+      SputnikStatsd.getInstance().startIfEnabled();
+    }
+    // a bitmap left from the previous IDE session may not match the saved metrics
+    if (!SputnikSettings.getInstance().getState().offMetrics.isEmpty() || Files.exists(Control.path())) {
+      SputnikControl.getInstance().write();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package sputnik;
+
+import com.intellij.ide.impl.ProjectUtil;
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * The StatsD listener of the IDE: its port and socket are app-level settings, so there is one listener and it sends
+ * metrics to the project of the focused IDE window, or of the last focused one while the IDE is in background.
+ */
+@Service
+public final class SputnikStatsd implements Disposable {
+  private static final Logger LOG = Logger.getInstance(SputnikStatsd.class);
+
+  private StatsdServer myServer = null;
+  private volatile Sputnik myTarget = null;
+
+  @NotNull
+  static SputnikStatsd getInstance() {
+    return ApplicationManager.getApplication().getService(SputnikStatsd.class);
+  }
+
+  synchronized void startIfEnabled() {
+    if (myServer == null) {
+      restart();
+    }
+  }
+
+  // starts or stops the listener according to settings
+  synchronized void restart() {
+    if (myServer != null) {
+      myServer.stop();
+      myServer = null;
+    }
+    SputnikSettings.Data settings = SputnikSettings.getInstance().getState();
+    if (!settings.statsdEnabled) {
+      return;
+    }
+    StatsdServer statsd = new StatsdServer(this::target, settings.statsdPort, settings.statsdUnixSocket.trim());
+    try {
+      statsd.start();
+      myServer = statsd;
+    } catch (IOException e) {
+      LOG.warn("Cannot start StatsD listener on port " + settings.statsdPort + " / '" + settings.statsdUnixSocket + "'", e);
+      NotificationGroupManager.getInstance().getNotificationGroup("Sputnik")
+              .createNotification("Cannot start Sputnik StatsD listener", String.valueOf(e.getMessage()), NotificationType.ERROR)
+              .notify(null);
+    }
+  }
+
+  // called by the listener thread before reading
+  @Nullable
+  private Sputnik target() {
+    Project active = ProjectUtil.getActiveProject();
+    Sputnik target = active != null ? running(active) : null;
+    if (target == null) {
+      target = myTarget;
+    }
+    if (target == null || !target.isRunning()) {
+      target = null;
+      for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+        target = running(project);
+        if (target != null) {
+          break;
+        }
+      }
+    }
+    if (target != null) {
+      target.start();
+    }
+    myTarget = target;
+    return target;
+  }
+
+  @Nullable
+  private static Sputnik running(@NotNull Project project) {
+    if (project.isDisposed()) {
+      return null;
+    }
+    Sputnik sputnik = project.getService(Sputnik.class);
+    return sputnik.isRunning() ? sputnik : null;
+  }
+
+  @Override
+  public synchronized void dispose() {
+    if (myServer != null) {
+      myServer.stop();
+      myServer = null;
+    }
+    myTarget = null;
+  }
+}
@@ -2,10 +2,12 @@ package sputnik;
 
 import com.intellij.icons.AllIcons;
 import com.intellij.ide.ui.UISettings;
+import com.intellij.openapi.actionSystem.ActionManager;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.wm.ToolWindowFactory;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.components.JBScrollPane;
@@ -21,8 +23,11 @@ import java.awt.event.MouseEvent;
 import java.awt.font.TextLayout;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SputnikTW implements ToolWindowFactory, DumbAware {
@@ -36,6 +41,8 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
     Content content = ContentFactory.getInstance().createContent(scrollPane, "", false);
     content.setPreferredFocusedComponent(() -> scrollPane);
     toolWindow.getContentManager().addContent(content);
+    toolWindow.setTitleActions(List.of(ActionManager.getInstance().getAction("sputnik.TailFile"),
+                                       ActionManager.getInstance().getAction("sputnik.ImportJfr")));
     ApplicationManager.getApplication().executeOnPooledThread(() -> {
       int lastShown = 0;
       while (s.isRunning()) {
@@ -46,7 +53,8 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
   }
 
   static class SputnikPanel extends JPanel {
-    private static final JBColor[] colors = new JBColor[]{JBColor.RED, JBColor.BLUE, JBColor.GREEN, JBColor.YELLOW};
+    private static final JBColor[] colors = new JBColor[]{JBColor.RED, JBColor.BLUE, JBColor.GREEN, JBColor.YELLOW,
+      JBColor.ORANGE, JBColor.MAGENTA, JBColor.CYAN, JBColor.PINK, JBColor.GRAY, JBColor.DARK_GRAY};
 
     private final AtomicBoolean myScheduled = new AtomicBoolean(false);
     private final ToolWindow myTw;
@@ -56,6 +64,8 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
     private final List<CloseBounds> myCloseBounds = new ArrayList<>();
     private final List<ActionBounds> myActionBounds = new ArrayList<>();
     private volatile boolean myDrawHiCumulative = false;
+    // H2 name -> its image, used only in paint
+    private final Map<String, H2Image> myH2Images = new HashMap<>();
 
     public SputnikPanel(@NotNull ToolWindow tw, @NotNull Sputnik sputnik) {
       myTw = tw;
@@ -77,6 +87,14 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
                   mySputnik.deleteChart(b.name);
                 } else if ("hi".equals(b.type)) {
                   mySputnik.deleteHi();
+                } else if ("h2".equals(b.type)) {
+                  mySputnik.deleteH2(b.name);
+                } else if ("diff".equals(b.type)) {
+                  mySputnik.deleteRunDiff();
+                } else if ("evicted".equals(b.type)) {
+                  mySputnik.deleteEvictionNote();
+                } else if ("tail".equals(b.type)) {
+                  mySputnik.stopTail(b.name);
                 }
                 scheduleRepaint();
               });
@@ -103,24 +121,55 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
     protected void paintComponent(Graphics g) {
       super.paintComponent(g);
       myScheduled.set(false);
-      List<Sputnik.HistUi> myHists = mySputnik.getHist();
-      List<Sputnik.ChartUi> charts = mySputnik.getCharts();
-      List<Sputnik.HiUi> his = mySputnik.getHis();
+      List<Aggregator.HistUi> myHists = mySputnik.getHist();
+      List<Aggregator.ChartUi> charts = mySputnik.getCharts();
+      List<Aggregator.HiUi> his = mySputnik.getHis();
+      List<Aggregator.H2Ui> h2s = mySputnik.getH2s();
+      RunDiff diff = mySputnik.getRunDiff();
+      String evictionNote = mySputnik.getEvictionNote();
+      List<String> breaches = mySputnik.getBreaches();
+      List<FileTailer> tailers = mySputnik.getTailers();
+      List<String> off = offWithoutUi(myHists, charts);
 
       UISettings.setupAntialiasing(g);
       g.setFont(myFont);
 
       int y = 30;
-      for (Sputnik.HistUi hist : myHists) {
+      if (evictionNote != null) {
+        y = drawEvictionNote(g, y, evictionNote, true);
+        y += 20;
+      }
+      if (!breaches.isEmpty()) {
+        y = drawBreaches(g, y, breaches, true);
+        y += 20;
+      }
+      if (!tailers.isEmpty()) {
+        y = drawTailers(g, y, tailers, true);
+        y += 20;
+      }
+      if (!off.isEmpty()) {
+        y = drawOff(g, y, off, true);
+        y += 20;
+      }
+      if (diff != null) {
+        y = drawRunDiff(g, y, diff, true);
+        y += 20;
+      }
+      for (Aggregator.HistUi hist : myHists) {
         y = drawHist(g, y, hist, true);
         y += 20;
       }
 
-      for (Sputnik.ChartUi chart : charts) {
+      for (Aggregator.ChartUi chart : charts) {
         y += drawChart(g, y, chart, true);
         y += 20;
       }
 
+      for (Aggregator.H2Ui h2 : h2s) {
+        y = drawH2(g, y, h2, true);
+        y += 20;
+      }
+
       y += his.size() * (200 + 20);
 
       Dimension size = getSize();
@@ -133,23 +182,85 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
       myActionBounds.clear();
 
       y = 30;
-      for (Sputnik.HistUi hist : myHists) {
+      if (evictionNote != null) {
+        y = drawEvictionNote(g, y, evictionNote, false);
+        y += 20;
+      }
+      if (!breaches.isEmpty()) {
+        y = drawBreaches(g, y, breaches, false);
+        y += 20;
+      }
+      if (!tailers.isEmpty()) {
+        y = drawTailers(g, y, tailers, false);
+        y += 20;
+      }
+      if (!off.isEmpty()) {
+        y = drawOff(g, y, off, false);
+        y += 20;
+      }
+      if (diff != null) {
+        y = drawRunDiff(g, y, diff, false);
+        y += 20;
+      }
+      for (Aggregator.HistUi hist : myHists) {
         y = drawHist(g, y, hist, false);
         y += 20;
       }
 
-      for (Sputnik.ChartUi chart : charts) {
+      for (Aggregator.ChartUi chart : charts) {
         y += drawChart(g, y, chart, false);
         y += 20;
       }
 
-      for (Sputnik.HiUi hi : his) {
+      for (Aggregator.H2Ui h2 : h2s) {
+        y = drawH2(g, y, h2, false);
+        y += 20;
+      }
+      myH2Images.keySet().removeIf(name -> h2s.stream().noneMatch(h2 -> h2.myName.equals(name)));
+
+      for (Aggregator.HiUi hi : his) {
         y += drawHi(g, y, hi);
         y += 20;
       }
     }
 
-    private int drawHi(Graphics g, int y, Sputnik.HiUi hi) {
+    private int drawH2(Graphics g, int y, Aggregator.H2Ui h2, boolean dryRun) {
+      int rowHeight = 10;
+      int side = 200;
+      if (!dryRun) {
+        TextLayout tl = new TextLayout(h2.myName + ", total: " + h2.myTotal, myBoldFont, ((Graphics2D) g).getFontRenderContext());
+        tl.draw((Graphics2D) g, 10, y);
+        Rectangle2D bounds = tl.getBounds();
+        bounds.setRect(10 + (int) bounds.getMaxX() + 5,
+                bounds.getY() + y - 1 - ((AllIcons.Actions.Close.getIconHeight() - rowHeight) / 2.0),
+                AllIcons.Actions.Close.getIconWidth(),
+                AllIcons.Actions.Close.getIconHeight());
+        myCloseBounds.add(new CloseBounds(bounds, "h2", h2.myName));
+        AllIcons.Actions.Close.paintIcon(this, g, (int) bounds.getX(), (int) bounds.getY());
+      }
+      y += rowHeight;
+      if (!dryRun) {
+        H2Image cached = myH2Images.get(h2.myName);
+        if (cached == null || cached.ui != h2) {
+          cached = new H2Image(h2);
+          myH2Images.put(h2.myName, cached);
+        }
+        g.drawImage(cached.image, 10, y, side, side, null);
+        Color color = g.getColor();
+        g.setColor(JBColor.GRAY);
+        g.drawRect(10, y, side, side);
+        g.setColor(color);
+        // cells are log-sized, axes show lower bounds of the first and after the last cell
+        g.drawString(String.valueOf(Aggregator.H2Ui.lowerBound(h2.myMinY + h2.myHeight)), 10 + side + 10, y + rowHeight);
+        g.drawString(String.valueOf(Aggregator.H2Ui.lowerBound(h2.myMinY)), 10 + side + 10, y + side);
+        g.drawString(String.valueOf(Aggregator.H2Ui.lowerBound(h2.myMinX)), 10, y + side + 2 * rowHeight);
+        String maxX = String.valueOf(Aggregator.H2Ui.lowerBound(h2.myMinX + h2.myWidth));
+        g.drawString(maxX, 10 + side - g.getFontMetrics().stringWidth(maxX), y + side + 2 * rowHeight);
+      }
+      return y + side + 2 * rowHeight;
+    }
+
+    private int drawHi(Graphics g, int y, Aggregator.HiUi hi) {
       if (myDrawHiCumulative) {
         return drawHiCumulative(g, y, hi);
       }
@@ -170,33 +281,29 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
               10 + widthPx * 75, yStart,
               10 + widthPx * 75, yStart + heightPx * 100);
 
-      long height = hi.myMax - hi.myMin;
-      double step;
-      if (height >= 10) {
-        step = (double) height / 10;
-      } else {
-        step = 1.0;
-      }
-
       // draw first label with text layout to get bounds, needed for close icon
       g.setColor(JBColor.BLACK);
       int labelsXOffset = 10 + widthPx * 100 + 10;
-      TextLayout tl = new TextLayout("" + hi.myMin, myFont, ((Graphics2D) g).getFontRenderContext());
+      TextLayout tl = new TextLayout(hi.format(hi.myMin), myFont, ((Graphics2D) g).getFontRenderContext());
       tl.draw((Graphics2D) g, labelsXOffset, yStart + 5);
       Rectangle2D bounds = tl.getBounds();
 
+      // ticks are evenly spaced on the axis, so they are a constant ratio apart when buckets are log-scaled
       long prev = hi.myMin;
       for (int i = 1; i <= 10; i++) {
-        long val = (long) (prev + step);
-        if (val > hi.myMax) {
-          break;
+        long val = hi.valueAt(i / 10.0);
+        if (val == prev) {
+          continue;
         }
-        float part = (float) ((val - hi.myMin) * 1.0 / height);
-        int tickY = yStart + (int) (part * heightPx * 100);
-        g.drawString("" + val, labelsXOffset, tickY + 5);
+        int tickY = yStart + (int) (hi.position(val) * heightPx * 100);
+        g.drawString(hi.format(val), labelsXOffset, tickY + 5);
         prev = val;
       }
 
+      if (hi.mySamplingRatio > 1) {
+        g.drawString("sampled 1/" + hi.mySamplingRatio, 10, yStart - 2);
+      }
+
       g.setColor(JBColor.RED);
       for (float i : hi.myHist) {
         g.fillRect(10, y, widthPx * (int) (i * scale), heightPx);
@@ -221,7 +328,7 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
       return y;
     }
 
-    private int drawHiCumulative(Graphics g, int y, Sputnik.HiUi hi) {
+    private int drawHiCumulative(Graphics g, int y, Aggregator.HiUi hi) {
       int heightPx = 2;
       int widthPx = 2;
       g.drawRect(10, y, widthPx * 100, heightPx * 100);
@@ -262,12 +369,13 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
       g.drawString("75", 5 + widthPx * 75, yStart);
       g.drawString("90", 5 + widthPx * 90, yStart);
       g.drawString("99", 5 + widthPx * 99, yStart);
-
-      long height = hi.myMax - hi.myMin;
+      if (hi.mySamplingRatio > 1) {
+        g.drawString("sampled 1/" + hi.mySamplingRatio, 10, yStart - 12);
+      }
 
       // draw first label with text layout to get bounds, needed for close icon
       int labelsXOffset = 10 + widthPx * 100 + 10;
-      TextLayout tl = new TextLayout("" + hi.myMin, myFont, ((Graphics2D) g).getFontRenderContext());
+      TextLayout tl = new TextLayout(hi.format(hi.myMin), myFont, ((Graphics2D) g).getFontRenderContext());
       tl.draw((Graphics2D) g, labelsXOffset, yStart + 5);
       Rectangle2D bounds = tl.getBounds();
 
@@ -288,7 +396,7 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
                   10 + widthPx * (int)x, y,
                   10 + widthPx * 100, y);
           g.setColor(JBColor.BLACK);
-          g.drawString((long)(hi.myMin + height * i * 0.01) + " (" + percentiles[percIdx] + "%)", labelsXOffset, y + 5);
+          g.drawString(hi.format(hi.valueAt(i * 0.01)) + " (" + percentiles[percIdx] + "%)", labelsXOffset, y + 5);
           g.setColor(JBColor.RED);
           ((Graphics2D) g).setStroke(defaultStroke);
           percIdx++;
@@ -296,7 +404,7 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
       }
 
       g.setColor(JBColor.BLACK);
-      g.drawString("" + hi.myMax, labelsXOffset, y + 15);
+      g.drawString(hi.format(hi.myMax), labelsXOffset, y + 15);
 
       AllIcons.Actions.Close.paintIcon(this, g,
               (int) (labelsXOffset + bounds.getWidth()),
@@ -316,9 +424,9 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
       return y;
     }
 
-    private int drawHist(Graphics g, int y, Sputnik.HistUi hist, boolean dryRun) {
+    private int drawHist(Graphics g, int y, Aggregator.HistUi hist, boolean dryRun) {
       int size = hist.getSize();
-      int total = hist.getTotal();
+      long total = hist.getTotal();
       float k = 1.0f / total;
 
       int totalWidth = 100;
@@ -329,7 +437,8 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
         if (!namePrefix.isEmpty()) {
           namePrefix += ", ";
         }
-        String title = namePrefix + "total: " + total;
+        String title = namePrefix + "total: " + total + sampling(hist.getSamplingRatio(), hist.getSamplingError()) +
+                       (SputnikControl.getInstance().isOn(hist.getHistName()) ? "" : ", off");
         TextLayout tl = new TextLayout(title, myBoldFont, ((Graphics2D) g).getFontRenderContext());
         tl.draw((Graphics2D) g, 10, y);
         Rectangle2D bounds = tl.getBounds();
@@ -340,12 +449,17 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
 
         myCloseBounds.add(new CloseBounds(bounds, "hist", hist.getHistName()));
         AllIcons.Actions.Close.paintIcon(this, g, (int) bounds.getX(), (int) bounds.getY());
+        drawSwitch(g, bounds, hist.getHistName());
       }
 
       y += rowHeight;
 
+      if (hist.isTree()) {
+        return drawTreeRows(g, y, hist, dryRun);
+      }
+
       for (int i = 0; i < size; i++) {
-        int count = hist.getCount(i);
+        long count = hist.getCount(i);
         float bucketContrib = count * k;
         if (bucketContrib < 0.01) {
           if (!dryRun) {
@@ -371,18 +485,230 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
       return y;
     }
 
-    private int drawChart(Graphics g, int y, Sputnik.ChartUi chart, boolean dryRun) {
-      int max = 0;
-      for (Sputnik.SeriesUi series : chart.series.values()) {
-        for (int count : series.counts) {
-          max = Math.max(max, count);
+    // rows of a tree hist are indented by level, clicking a row with children expands or collapses it
+    private int drawTreeRows(Graphics g, int y, Aggregator.HistUi hist, boolean dryRun) {
+      float k = 1.0f / hist.getTotal();
+      int totalWidth = 100;
+      int rowHeight = 10;
+      for (int i = 0; i < hist.getSize(); i++) {
+        if (!dryRun) {
+          int x = 10 + 10 * hist.getLevel(i);
+          long count = hist.getCount(i);
+          float bucketContrib = count * k;
+          int width = (int) (totalWidth * bucketContrib);
+          Color color = g.getColor();
+          g.setColor(JBColor.RED);
+          g.fillRect(x, y, width, rowHeight);
+          g.setColor(color);
+
+          String marker = hist.isExpandable(i) ? (hist.isExpanded(i) ? "- " : "+ ") : "";
+          String bucketText = marker + hist.getBucketName(i) + " " + count + " (" + (int) (100 * bucketContrib) + "%)";
+          g.drawString(bucketText, x + width + 10, y + rowHeight);
+
+          String path = hist.getPath(i);
+          if (hist.isExpandable(i) && path != null) {
+            String histName = hist.getHistName();
+            myActionBounds.add(new ActionBounds(new Rectangle2D.Float(x, y, getWidth() - x, rowHeight), () ->
+              ApplicationManager.getApplication().executeOnPooledThread(() -> mySputnik.toggleNode(histName, path))));
+          }
         }
+        y += 2 * rowHeight;
       }
+      return y;
+    }
 
+    private int drawEvictionNote(Graphics g, int y, String note, boolean dryRun) {
       int rowHeight = 10;
+      if (!dryRun) {
+        Color color = g.getColor();
+        g.setColor(JBColor.RED);
+        TextLayout tl = new TextLayout(note, myFont, ((Graphics2D) g).getFontRenderContext());
+        tl.draw((Graphics2D) g, 10, y);
+        g.setColor(color);
+        Rectangle2D bounds = tl.getBounds();
+        bounds.setRect(10 + (int) bounds.getMaxX() + 5,
+                bounds.getY() + y - 1 - ((AllIcons.Actions.Close.getIconHeight() - rowHeight) / 2.0),
+                AllIcons.Actions.Close.getIconWidth(),
+                AllIcons.Actions.Close.getIconHeight());
 
+        myCloseBounds.add(new CloseBounds(bounds, "evicted", ""));
+        AllIcons.Actions.Close.paintIcon(this, g, (int) bounds.getX(), (int) bounds.getY());
+      }
+      return y + rowHeight;
+    }
+
+    private int drawBreaches(Graphics g, int y, List<String> breaches, boolean dryRun) {
+      int rowHeight = 10;
+      for (String breach : breaches) {
+        if (!dryRun) {
+          Color color = g.getColor();
+          g.setColor(JBColor.RED);
+          g.drawString("watch breached: " + breach, 10, y);
+          g.setColor(color);
+        }
+        y += 2 * rowHeight;
+      }
+      return y - rowHeight;
+    }
+
+    private int drawTailers(Graphics g, int y, List<FileTailer> tailers, boolean dryRun) {
+      int rowHeight = 10;
+      for (FileTailer tailer : tailers) {
+        if (!dryRun) {
+          String text = "tailing " + tailer.getPath() + ", read " + StringUtil.formatFileSize(tailer.getReadBytes());
+          TextLayout tl = new TextLayout(text, myFont, ((Graphics2D) g).getFontRenderContext());
+          tl.draw((Graphics2D) g, 10, y);
+          Rectangle2D bounds = tl.getBounds();
+          bounds.setRect(10 + (int) bounds.getMaxX() + 5,
+                  bounds.getY() + y - 1 - ((AllIcons.Actions.Close.getIconHeight() - rowHeight) / 2.0),
+                  AllIcons.Actions.Close.getIconWidth(),
+                  AllIcons.Actions.Close.getIconHeight());
+
+          myCloseBounds.add(new CloseBounds(bounds, "tail", tailer.getPath().toString()));
+          AllIcons.Actions.Close.paintIcon(this, g, (int) bounds.getX(), (int) bounds.getY());
+        }
+        y += 2 * rowHeight;
+      }
+      return y - rowHeight;
+    }
+
+    // turned off metrics which are not shown, e.g. closed or evicted, so they can be turned on again
+    @NotNull
+    private static List<String> offWithoutUi(@NotNull List<Aggregator.HistUi> hists, @NotNull List<Aggregator.ChartUi> charts) {
+      List<String> result = new ArrayList<>();
+      for (String name : SputnikControl.getInstance().getOff()) {
+        if (hists.stream().noneMatch(h -> h.getHistName().equals(name)) && charts.stream().noneMatch(c -> c.name.equals(name))) {
+          result.add(name);
+        }
+      }
+      return result;
+    }
+
+    private int drawOff(Graphics g, int y, List<String> off, boolean dryRun) {
+      int rowHeight = 10;
+      for (String name : off) {
+        if (!dryRun) {
+          TextLayout tl = new TextLayout("turned off in processes: " + name, myFont, ((Graphics2D) g).getFontRenderContext());
+          tl.draw((Graphics2D) g, 10, y);
+          Rectangle2D bounds = tl.getBounds();
+          bounds.setRect(10 + (int) bounds.getMaxX() + 5,
+                  bounds.getY() + y - 1 - ((AllIcons.Actions.Resume.getIconHeight() - rowHeight) / 2.0),
+                  0, AllIcons.Actions.Resume.getIconHeight());
+          drawSwitch(g, bounds, name);
+        }
+        y += 2 * rowHeight;
+      }
+      return y - rowHeight;
+    }
+
+    // pause or resume icon after the icon in bounds, turns the metric off or on in running processes, see Control
+    private void drawSwitch(Graphics g, Rectangle2D bounds, String name) {
+      boolean on = SputnikControl.getInstance().isOn(name);
+      Icon icon = on ? AllIcons.Actions.Pause : AllIcons.Actions.Resume;
+      int x = (int) bounds.getMaxX() + 2;
+      icon.paintIcon(this, g, x, (int) bounds.getY());
+      myActionBounds.add(new ActionBounds(new Rectangle2D.Float(x, (float) bounds.getY(), icon.getIconWidth(), icon.getIconHeight()),
+                                          () -> SputnikControl.getInstance().setOn(name, !on)));
+    }
+
+    private int drawRunDiff(Graphics g, int y, RunDiff diff, boolean dryRun) {
+      int rowHeight = 10;
+
+      if (!dryRun) {
+        String title = diff.myRunName + ": last run vs previous (! - likely significant)";
+        TextLayout tl = new TextLayout(title, myBoldFont, ((Graphics2D) g).getFontRenderContext());
+        tl.draw((Graphics2D) g, 10, y);
+        Rectangle2D bounds = tl.getBounds();
+        bounds.setRect(10 + (int) bounds.getMaxX() + 5,
+                bounds.getY() + y - 1 - ((AllIcons.Actions.Close.getIconHeight() - rowHeight) / 2.0),
+                AllIcons.Actions.Close.getIconWidth(),
+                AllIcons.Actions.Close.getIconHeight());
+
+        myCloseBounds.add(new CloseBounds(bounds, "diff", ""));
+        AllIcons.Actions.Close.paintIcon(this, g, (int) bounds.getX(), (int) bounds.getY());
+      }
+
+      y += rowHeight;
+
+      RunDiff.HiDiff hi = diff.myHi;
+      if (hi != null) {
+        for (int i = 0; i < RunDiff.PERCENTILES.length; i++) {
+          String text = "Hi p" + (int) (RunDiff.PERCENTILES[i] * 100) + ": " + ValueParser.format(hi.myBefore[i], hi.myUnit) + " -> " +
+                        ValueParser.format(hi.myAfter[i], hi.myUnit) +
+                        change(hi.myBefore[i], hi.myAfter[i]);
+          y = drawDiffRow(g, y, text, hi.mySignificant[i], dryRun);
+        }
+        String text = "Hi shift: " + (int) (100 * hi.myShift) + "% (" + hi.mySizeBefore + " vs " + hi.mySizeAfter + " values)";
+        y = drawDiffRow(g, y, text, hi.myShiftSignificant, dryRun);
+      }
+
+      for (RunDiff.HistDiff hist : diff.myHists) {
+        String text = hist.myName + ", total: " + hist.myTotalBefore + " -> " + hist.myTotalAfter +
+                      ", shift: " + (int) (100 * hist.myShift) + "%";
+        y = drawDiffRow(g, y, text, hist.mySignificant, dryRun);
+        int shown = 0;
+        for (RunDiff.BucketDiff bucket : hist.myBuckets) {
+          if (shown == 10 || (!bucket.mySignificant && Math.abs(bucket.myShareAfter - bucket.myShareBefore) < 0.01)) {
+            break;
+          }
+          String bucketText = "  " + bucket.myName + " " + bucket.myBefore + " -> " + bucket.myAfter +
+                              String.format(" (%+d), %.1f%% -> %.1f%%", bucket.myAfter - bucket.myBefore,
+                                      100 * bucket.myShareBefore, 100 * bucket.myShareAfter);
+          y = drawDiffRow(g, y, bucketText, bucket.mySignificant, dryRun);
+          shown++;
+        }
+      }
+
+      for (RunDiff.SeriesDiff series : diff.mySeries) {
+        String text = series.myChartName + "/" + series.mySeriesName +
+                      String.format(": %.1f/s -> %.1f/s", series.myRateBefore, series.myRateAfter);
+        y = drawDiffRow(g, y, text, series.mySignificant, dryRun);
+      }
+
+      return y;
+    }
+
+    private int drawDiffRow(Graphics g, int y, String text, boolean significant, boolean dryRun) {
+      int rowHeight = 10;
       if (!dryRun) {
-        TextLayout tl = new TextLayout(chart.name, myBoldFont, ((Graphics2D) g).getFontRenderContext());
+        Color color = g.getColor();
+        if (significant) {
+          g.setColor(JBColor.RED);
+          text += " !";
+        }
+        g.drawString(text, 10, y + rowHeight);
+        g.setColor(color);
+      }
+      return y + 2 * rowHeight;
+    }
+
+    // sampling ratio and the relative error it caused, empty if nothing was sampled
+    @NotNull
+    private static String sampling(int ratio, double error) {
+      if (error > 0) {
+        return String.format(", %s, \u00b1%.1f%%", ratio > 1 ? "sampled 1/" + ratio : "partly sampled", 100 * error);
+      }
+      return ratio > 1 ? ", sampled 1/" + ratio : "";
+    }
+
+    @NotNull
+    private static String change(long before, long after) {
+      if (before == 0) {
+        return "";
+      }
+      return String.format(" (%+.1f%%)", 100.0 * (after - before) / before);
+    }
+
+    private int drawChart(Graphics g, int y, Aggregator.ChartUi chart, boolean dryRun) {
+      int rowHeight = 10;
+
+      if (!dryRun) {
+        String title = chart.name + sampling(chart.samplingRatio, chart.samplingError) +
+                       (chart.secondsPerSample > 1 ? ", per " + chart.secondsPerSample + " s" : "") +
+                       (chart.lateCounts > 0 ? ", " + chart.lateCounts + " late" : "") +
+                       (chart.futureCounts > 0 ? ", " + chart.futureCounts + " in the future" : "") +
+                       (SputnikControl.getInstance().isOn(chart.name) ? "" : ", off");
+        TextLayout tl = new TextLayout(title, myBoldFont, ((Graphics2D) g).getFontRenderContext());
         tl.draw((Graphics2D) g, 10, y);
         Rectangle2D bounds = tl.getBounds();
         bounds.setRect(10 + (int) bounds.getMaxX() + 5,
@@ -392,41 +718,62 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
 
         myCloseBounds.add(new CloseBounds(bounds, "chart", chart.name));
         AllIcons.Actions.Close.paintIcon(this, g, (int) bounds.getX(), (int) bounds.getY());
+        drawSwitch(g, bounds, chart.name);
       }
 
       y += rowHeight;
 
       int rectHeight = 100;
+      int rectWidth = 270;
       int tickSize = 30;
+      // the whole history is squeezed into the same width, series are decimated to min and max per pixel column
+      int shown = chart.getShown();
+      float sampleWidth = (float) rectWidth / (shown - 1);
       y += rectHeight; // now at the bottom of the chart
       Color prevColor = g.getColor();
       if (!dryRun) {
-        g.drawRect(10, y - rectHeight, (chart.size - 1) * tickSize, rectHeight);
-        g.drawString("0", 10 + (chart.size - 1) * tickSize + 10, y);
-        g.drawString(String.valueOf(max), 10 + (chart.size - 1) * tickSize + 10, y - rectHeight + rowHeight);
+        List<Aggregator.Decimation> decimations = new ArrayList<>(chart.series.size());
+        int max = 0;
+        for (Aggregator.SeriesUi series : chart.series.values()) {
+          Aggregator.Decimation decimation = series.decimate(shown, rectWidth);
+          decimations.add(decimation);
+          for (int columnMax : decimation.myMax) {
+            max = Math.max(max, columnMax);
+          }
+        }
+        g.drawRect(10, y - rectHeight, rectWidth, rectHeight);
+        g.drawString("0", 10 + rectWidth + 10, y);
+        g.drawString(String.valueOf(max), 10 + rectWidth + 10, y - rectHeight + rowHeight);
         if (max != 0) {
           float k = 100.0f / max;
           int colorIdx = 0;
-          for (Sputnik.SeriesUi series : chart.series.values()) {
-            JBColor color = colors[colorIdx];
-            g.setColor(color);
-            int x = 10;
+          for (Aggregator.Decimation decimation : decimations) {
+            g.setColor(colors[colorIdx]);
+            // a column holds a single sample unless the history is wider than the chart
+            float columnWidth = (float) rectWidth / (decimation.myColumns - 1);
             GeneralPath path = new GeneralPath();
-            path.moveTo(x, y - k * series.counts[(series.writeIdx) % chart.size]);
-            x += tickSize;
-            for (int i = 1; i < chart.size; i++) {
-              path.lineTo(x, y - k * series.counts[(series.writeIdx + i) % chart.size]);
-              x += tickSize;
+            path.moveTo(10, y - k * decimation.myMin[0]);
+            for (int i = 0; i < decimation.myColumns; i++) {
+              float x = 10 + i * columnWidth;
+              path.lineTo(x, y - k * decimation.myMin[i]);
+              if (decimation.myMax[i] != decimation.myMin[i]) {
+                path.lineTo(x, y - k * decimation.myMax[i]);
+              }
             }
             ((Graphics2D) g).draw(path);
             colorIdx = (colorIdx + 1) % colors.length;
           }
         }
+        g.setColor(JBColor.RED);
+        for (Aggregator.Marker marker : chart.markers) {
+          int x = 10 + (int) ((shown - chart.samples + marker.mySample) * sampleWidth);
+          g.drawLine(x, y - rectHeight, x, y);
+        }
       }
 
       y += 2 * rowHeight;
       int colorIdx = 0;
-      for (Sputnik.SeriesUi series : chart.series.values()) {
+      for (Aggregator.SeriesUi series : chart.series.values()) {
         JBColor color = colors[colorIdx];
         g.setColor(color);
         g.drawLine(10, y - 5, 10 + tickSize, y - 5);
@@ -434,10 +781,37 @@ public class SputnikTW implements ToolWindowFactory, DumbAware {
         y += 2 * rowHeight;
         colorIdx = (colorIdx + 1) % colors.length;
       }
+      g.setColor(JBColor.RED);
+      for (Aggregator.Marker marker : chart.markers) {
+        g.drawLine(10, y - 5, 10 + tickSize, y - 5);
+        g.drawString(marker.myText, 10 + tickSize + 10, y);
+        y += 2 * rowHeight;
+      }
       g.setColor(prevColor);
       return y;
     }
 
+    // density image of a published H2, rebuilt only when the H2 changes
+    static class H2Image {
+      private final Aggregator.H2Ui ui;
+      private final BufferedImage image;
+
+      H2Image(@NotNull Aggregator.H2Ui h2) {
+        ui = h2;
+        image = new BufferedImage(h2.myWidth, h2.myHeight, BufferedImage.TYPE_INT_ARGB);
+        double logMax = Math.log1p(h2.myMaxCount);
+        for (int y = 0; y < h2.myHeight; y++) {
+          for (int x = 0; x < h2.myWidth; x++) {
+            long count = h2.myCounts[y * h2.myWidth + x];
+            if (count > 0) {
+              int alpha = 40 + (int) (215 * Math.log1p(count) / logMax);
+              image.setRGB(x, h2.myHeight - 1 - y, (alpha << 24) | (JBColor.RED.getRGB() & 0xFFFFFF));
+            }
+          }
+        }
+      }
+    }
+
     static class CloseBounds {
       private final Rectangle2D rect;
       private final String type;
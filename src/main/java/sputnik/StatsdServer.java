@@ -0,0 +1,393 @@
+package sputnik;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives StatsD metrics and Sputnik commands on a localhost udp port and/or a unix domain socket,
+ * so processes not started from the IDE can report to Sputnik.
+ *
+ * StatsD metrics are mapped like this:
+ * counter 'app.requests:1|c' adds 1 to series 'requests' in chart 'app' (names without '.' go to chart 'statsd'),
+ * gauge 'app.queue:10|g' sets the series value, '+1' or '-1' changes it,
+ * timer or histogram 'app.latency:12|ms' (also '|h' and '|d') adds 12 to the integer histogram,
+ * set 'app.users:joe|s' adds 1 to bucket 'joe' in hist 'app.users'.
+ * Lines starting with \u0001 are parsed as Sputnik commands.
+ * When Sputnik is overloaded metrics are sampled like commands, counts of sampled metrics are scaled back up.
+ *
+ * There is one listener for the IDE, the target gives the Sputnik of the project which gets the metrics, it is asked
+ * before every read. Every unix socket connection and every udp sender address is a separate source of commands with
+ * its own handles. When the target changes, handles declared by sources are forgotten.
+ */
+final class StatsdServer {
+  private static final Logger LOG = Logger.getInstance(StatsdServer.class);
+  private static final int BUF_SIZE = 64 * 1024;
+  // udp senders are forgotten with their handles when there are more of them
+  private static final int MAX_UDP_SENDERS = 256;
+
+  private final Supplier<Sputnik> myTarget;
+  private final int myPort;
+  private final String myUnixSocketPath;
+  private final AtomicBoolean myStop = new AtomicBoolean();
+  private Selector mySelector;
+  // accessed only by receive()
+  private final ByteBuffer myUdpBuf = ByteBuffer.allocate(BUF_SIZE);
+  private final Map<SocketAddress, Source> myUdpSources = new HashMap<>();
+
+  // port 0 or empty path disables the corresponding listener
+  StatsdServer(@NotNull Supplier<Sputnik> target, int port, @NotNull String unixSocketPath) {
+    myTarget = target;
+    myPort = port;
+    myUnixSocketPath = unixSocketPath;
+  }
+
+  void start() throws IOException {
+    mySelector = Selector.open();
+    try {
+      if (myPort > 0) {
+        DatagramChannel udp = DatagramChannel.open(StandardProtocolFamily.INET);
+        udp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), myPort));
+        udp.configureBlocking(false);
+        udp.register(mySelector, SelectionKey.OP_READ);
+      }
+      if (!myUnixSocketPath.isEmpty()) {
+        Path path = Path.of(myUnixSocketPath);
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+          if (!isSocket(path)) {
+            throw new IOException(path + " exists and is not a unix socket, choose another path in Sputnik settings");
+          }
+          // left by a listener which wasn't stopped
+          Files.delete(path);
+        }
+        ServerSocketChannel unix = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        unix.bind(UnixDomainSocketAddress.of(path));
+        unix.configureBlocking(false);
+        unix.register(mySelector, SelectionKey.OP_ACCEPT);
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    ApplicationManager.getApplication().executeOnPooledThread(this::receive);
+  }
+
+  void stop() {
+    myStop.set(true);
+    Selector selector = mySelector;
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  private void receive() {
+    try {
+      while (!myStop.get()) {
+        mySelector.select(1000);
+        Sputnik target = null;
+        Iterator<SelectionKey> it = mySelector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+            if (client != null) {
+              client.configureBlocking(false);
+              client.register(mySelector, SelectionKey.OP_READ, new Source(ByteBuffer.allocate(BUF_SIZE)));
+            }
+          } else if (key.isReadable()) {
+            if (target == null) {
+              target = myTarget.get();
+            }
+            if (key.channel() instanceof DatagramChannel) {
+              // decode all datagrams received so far before going back to select
+              DatagramChannel udp = (DatagramChannel) key.channel();
+              SocketAddress sender;
+              while ((sender = udp.receive(myUdpBuf)) != null) {
+                myUdpBuf.flip();
+                Source source = udpSource(sender);
+                source.route(target);
+                source.decode(myUdpBuf, true);
+                myUdpBuf.clear();
+              }
+            } else {
+              Source source = (Source) key.attachment();
+              source.route(target);
+              readClient(key, source);
+            }
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      LOG.warn("StatsD listener stopped", e);
+    } finally {
+      close();
+    }
+  }
+
+  @NotNull
+  private Source udpSource(@NotNull SocketAddress sender) {
+    Source source = myUdpSources.get(sender);
+    if (source == null) {
+      if (myUdpSources.size() == MAX_UDP_SENDERS) {
+        myUdpSources.clear();
+      }
+      source = new Source(null);
+      myUdpSources.put(sender, source);
+    }
+    return source;
+  }
+
+  // errors of a unix socket client close only that client
+  private static void readClient(@NotNull SelectionKey key, @NotNull Source source) {
+    SocketChannel client = (SocketChannel) key.channel();
+    ByteBuffer buf = source.myBuf;
+    int read;
+    try {
+      while ((read = client.read(buf)) > 0) {
+        buf.flip();
+        source.decode(buf, false);
+        if (buf.position() == 0 && buf.limit() == buf.capacity()) {
+          // line is longer than the buffer, drop it
+          buf.clear();
+          source.mySkipLine = true;
+        } else {
+          buf.compact();
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("StatsD client failed", e);
+      read = -1;
+    }
+    if (read < 0) {
+      key.cancel();
+      try {
+        client.close();
+      } catch (IOException e) {
+        LOG.debug(e);
+      }
+    }
+  }
+
+  private void close() {
+    if (mySelector == null) {
+      return;
+    }
+    for (SelectionKey key : mySelector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        LOG.debug(e);
+      }
+    }
+    try {
+      mySelector.close();
+      Path path = myUnixSocketPath.isEmpty() ? null : Path.of(myUnixSocketPath);
+      if (path != null && Files.exists(path, LinkOption.NOFOLLOW_LINKS) && isSocket(path)) {
+        Files.delete(path);
+      }
+    } catch (IOException e) {
+      LOG.debug(e);
+    }
+  }
+
+  // only sockets are deleted at the configured path, a mistyped path must not cost the user a file
+  private static boolean isSocket(@NotNull Path path) throws IOException {
+    try {
+      int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+      return (mode & 0170000) == 0140000;
+    } catch (UnsupportedOperationException e) {
+      // no unix attributes on Windows, sockets are neither files, directories nor links there
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+  }
+
+  // decoding state of one udp sender or unix socket connection
+  private static final class Source {
+    // null when there is no project to send to, then everything received is dropped
+    private Sputnik mySputnik;
+    private CommandParser myParser;
+    // incomplete line of a connection, udp senders share the receive buffer
+    private final ByteBuffer myBuf;
+    // the start of the current line was dropped, bytes up to the next line separator are skipped
+    private boolean mySkipLine = false;
+
+    private Source(@Nullable ByteBuffer buf) {
+      myBuf = buf;
+    }
+
+    private void route(@Nullable Sputnik s) {
+      if (s != mySputnik) {
+        mySputnik = s;
+        myParser = s != null ? new CommandParser(s) : null;
+      }
+    }
+
+    // decodes complete lines between position and limit and sets position after the last decoded line,
+    // the last line of a datagram doesn't have to end with a line separator
+    private void decode(@NotNull ByteBuffer buf, boolean datagram) {
+      byte[] bytes = buf.array();
+      int start = buf.position();
+      int end = buf.limit();
+      int lineStart = start;
+      if (mySputnik == null) {
+        mySkipLine = !datagram && end > start && bytes[end - 1] != '\n';
+        buf.position(end);
+        return;
+      }
+      if (mySkipLine) {
+        int separator = indexOf(bytes, start, end, (byte) '\n');
+        if (separator < 0) {
+          buf.position(end);
+          return;
+        }
+        mySkipLine = false;
+        lineStart = separator + 1;
+      }
+      for (int i = lineStart; i < end; i++) {
+        if (bytes[i] == '\n') {
+          decodeLine(bytes, lineStart, i);
+          lineStart = i + 1;
+        }
+      }
+      if (datagram && lineStart < end) {
+        decodeLine(bytes, lineStart, end);
+        lineStart = end;
+      }
+      buf.position(lineStart);
+    }
+
+    private void decodeLine(byte @NotNull [] bytes, int start, int end) {
+      if (end > start && bytes[end - 1] == '\r') {
+        end--;
+      }
+      if (end == start) {
+        return;
+      }
+      if (bytes[start] == 1) {
+        myParser.parse(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+        return;
+      }
+      int weight = myParser.sample();
+      if (weight == 0) {
+        return;
+      }
+
+      // <name>:<value>|<type>[|@<sample rate>][|#<tags>]
+      int colon = indexOf(bytes, start, end, (byte) ':');
+      int bar = indexOf(bytes, colon + 1, end, (byte) '|');
+      if (colon <= start || bar < 0 || bar == end - 1) {
+        return;
+      }
+      int typeEnd = indexOf(bytes, bar + 1, end, (byte) '|');
+      if (typeEnd < 0) {
+        typeEnd = end;
+      }
+      double rate = 1.0;
+      if (typeEnd + 1 < end && bytes[typeEnd + 1] == '@') {
+        int rateEnd = indexOf(bytes, typeEnd + 2, end, (byte) '|');
+        rate = parseNumber(bytes, typeEnd + 2, rateEnd < 0 ? end : rateEnd);
+        if (!(rate > 0 && rate <= 1)) {
+          return;
+        }
+      }
+
+      byte type = bytes[bar + 1];
+      int typeLength = typeEnd - bar - 1;
+      if (type == 's' && typeLength == 1) {
+        String hist = new String(bytes, start, colon - start, StandardCharsets.UTF_8);
+        mySputnik.h(hist, myParser.normalize(hist, new String(bytes, colon + 1, bar - colon - 1, StandardCharsets.UTF_8)), weight);
+        return;
+      }
+      double value = parseNumber(bytes, colon + 1, bar);
+      if (Double.isNaN(value)) {
+        return;
+      }
+      if (type == 'c' && typeLength == 1) {
+        int dot = indexOf(bytes, start, colon, (byte) '.');
+        mySputnik.c(chartName(bytes, start, dot), seriesName(bytes, start, dot, colon), (int) Math.round(value / rate), weight);
+      } else if (type == 'g' && typeLength == 1) {
+        int dot = indexOf(bytes, start, colon, (byte) '.');
+        boolean delta = bytes[colon + 1] == '+' || bytes[colon + 1] == '-';
+        mySputnik.g(chartName(bytes, start, dot), seriesName(bytes, start, dot, colon), (int) Math.round(delta ? value * weight : value), delta);
+      } else if (type == 'm' && typeLength == 2 && bytes[bar + 2] == 's') {
+        mySputnik.HiFixed(ValueParser.scaled(value, "ms"), ValueParser.TIME, weight);
+      } else if ((type == 'h' || type == 'd') && typeLength == 1) {
+        mySputnik.HiFixed(ValueParser.scaled(value, ""), "", weight);
+      }
+    }
+
+    @NotNull
+    private static String chartName(byte @NotNull [] bytes, int start, int dot) {
+      return dot < 0 ? "statsd" : new String(bytes, start, dot - start, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String seriesName(byte @NotNull [] bytes, int start, int dot, int end) {
+      int seriesStart = dot < 0 ? start : dot + 1;
+      return new String(bytes, seriesStart, end - seriesStart, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte @NotNull [] bytes, int start, int end, byte b) {
+      for (int i = start; i < end; i++) {
+        if (bytes[i] == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    // parses [+-]digits[.digits] without allocations, returns NaN for anything else
+    private static double parseNumber(byte @NotNull [] bytes, int start, int end) {
+      int i = start;
+      boolean negative = false;
+      if (i < end && (bytes[i] == '+' || bytes[i] == '-')) {
+        negative = bytes[i] == '-';
+        i++;
+      }
+      if (i == end) {
+        return Double.NaN;
+      }
+      double result = 0;
+      double scale = 0;
+      for (; i < end; i++) {
+        byte b = bytes[i];
+        if (b == '.' && scale == 0) {
+          scale = 1;
+        } else if (b >= '0' && b <= '9') {
+          result = result * 10 + (b - '0');
+          scale *= 10;
+        } else {
+          return Double.NaN;
+        }
+      }
+      if (scale > 1) {
+        result /= scale;
+      }
+      return negative ? -result : result;
+    }
+  }
+}